@@ -59,6 +59,11 @@ pub struct Args {
     #[arg(long, env = "WINDY_WIND_MAX_RETRY")]
     pub wind_max_retry: Option<i64>,
 
+    /// Override the default comma-separated forecast hours of the cycle to
+    /// include in the forecast bundle (empty to disable it)
+    #[arg(long, env = "WINDY_WIND_FORECAST_HOURS")]
+    pub wind_forecast_hours: Option<String>,
+
     /// Dump the wind field images to the current directory instead of starting
     /// the server
     #[arg(long, env = "WINDY_ONCE")]
@@ -82,6 +87,9 @@ pub struct Config {
     pub max_retry: i64,
     /// Fixed forecast time override (`None` = use current time each update).
     pub gfs_time: Option<DateTime<Utc>>,
+    /// Ascending forecast hours in the bundle, after the analysis (empty = no
+    /// bundle).
+    pub forecast_hours: Vec<u32>,
 }
 
 impl Config {
@@ -120,6 +128,21 @@ impl Config {
             _ => None,
         };
 
+        // a cycle is published ~4-5h after its analysis time, and clients
+        // update every 6h by default, so it needs to cover about 12h
+        let forecast_hours = match args.wind_forecast_hours.as_deref() {
+            None => vec![0, 3, 6, 9, 12],
+            Some(s) => s
+                .split(',')
+                .map(str::trim)
+                .filter(|h| !h.is_empty())
+                .map(|h| h.parse().with_context(|| format!("invalid forecast hour {h:?}")))
+                .collect::<Result<Vec<u32>>>()?,
+        };
+        if forecast_hours.windows(2).any(|w| w[0] >= w[1]) {
+            bail!("forecast hours must be ascending");
+        }
+
         Ok(Config {
             gfs_base,
             precision,
@@ -130,6 +153,7 @@ impl Config {
             max_prev_cycles: count_opt(args.wind_max_prev_cycles, 3 * 4), // 3 days
             max_retry: count_opt(args.wind_max_retry, 3),
             gfs_time,
+            forecast_hours,
         })
     }
 }
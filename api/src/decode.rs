@@ -52,6 +52,17 @@ pub fn filter_wind_texture(img: &Rgb32FImage) -> Rgb32FImage {
     image::imageops::blur(&resized, 1.0)
 }
 
+/// Downscale the filtered wind texture by another 1/2 (bilinear), for clients
+/// on slow or metered connections.
+pub fn downscale_wind_texture(img: &Rgb32FImage) -> Rgb32FImage {
+    image::imageops::resize(
+        img,
+        (img.width() / 2).max(1),
+        (img.height() / 2).max(1),
+        FilterType::Triangle, // bilinear
+    )
+}
+
 /// Extract the wind vector field at the specified lng/lat precision from the
 /// grib, returning the ugrd/vgrd values and width/height.
 fn extract_grib_wind<T: Grib2Read>(grib2: Grib2<T>, precision: f32) -> Result<WindField> {
@@ -38,14 +38,17 @@ impl GfsCycle {
         (t.year(), t.month(), t.day(), t.hour() / 6 * 6)
     }
 
-    /// The previous 6-hour cycle.
-    pub fn prev(&self) -> GfsCycle {
+    /// The analysis time of the cycle.
+    pub fn time(&self) -> DateTime<Utc> {
         let (y, m, d, c) = self.fields();
-        let base = Utc
-            .with_ymd_and_hms(y, m, d, c, 0, 0)
+        Utc.with_ymd_and_hms(y, m, d, c, 0, 0)
             .single()
-            .expect("cycle fields not a valid utc time");
-        GfsCycle(base - chrono::Duration::hours(6))
+            .expect("cycle fields not a valid utc time")
+    }
+
+    /// The previous 6-hour cycle.
+    pub fn prev(&self) -> GfsCycle {
+        GfsCycle(self.time() - chrono::Duration::hours(6))
     }
 }
 
@@ -72,9 +75,19 @@ pub fn prec2(prec: f64) -> Result<i64> {
 /// The path (relative to the GFS mirror root) of the atmospheric analysis GRIB
 /// for the given cycle and precision.
 pub fn gfs_path(cycle: &GfsCycle, prec: f64) -> Result<String> {
+    gfs_forecast_path(cycle, prec, 0)
+}
+
+/// The path (relative to the GFS mirror root) of the GRIB for the given
+/// forecast hour of the cycle and precision (hour 0 is the analysis).
+pub fn gfs_forecast_path(cycle: &GfsCycle, prec: f64, hour: u32) -> Result<String> {
     let prec2 = prec2(prec)?;
     let (year, month, day, cyc) = cycle.fields();
-    let (model, collection, variant, forecast) = ("gfs", "atmos", "pgrb2", "anl");
+    let forecast = match hour {
+        0 => "anl".to_string(),
+        h => format!("f{h:03}"),
+    };
+    let (model, collection, variant) = ("gfs", "atmos", "pgrb2");
     Ok(format!(
         "{model}.{year:04}{month:02}{day:02}/{cyc:02}/{collection}/{model}.t{cyc:02}z.{variant}.{p0}p{p1:02}.{forecast}",
         p0 = prec2 / 100,
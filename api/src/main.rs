@@ -97,6 +97,9 @@ async fn run_once(
 
     std::fs::write("wind_field.jpg", &data.jpg.data).context("save wind_field.jpg")?;
     std::fs::write("wind_field.png", &data.png.data).context("save wind_field.png")?;
+    if let Some(bundle) = &data.bundle {
+        std::fs::write("wind_bundle.png", &bundle.filtered[0].data).context("save wind_bundle.png")?;
+    }
     log::info!("saved images");
 
     let _ = shutdown_tx.send(true);
@@ -14,6 +14,10 @@ use crate::windy::{WindData, Windy};
 
 const REDIRECT_URL: &str = "https://github.com/pgaskin/windy";
 
+/// Instance manipulation (RFC 3229) for patches from the previous cycle (see
+/// [`crate::windy::Delta`]).
+const DELTA_IM: &str = "windy-delta";
+
 pub fn routes(windy: Arc<Windy>) -> impl Filter<Extract = (Reply,), Error = Rejection> + Clone {
     warp::any()
         .and(warp::method())
@@ -21,6 +25,9 @@ pub fn routes(windy: Arc<Windy>) -> impl Filter<Extract = (Reply,), Error = Reje
         .and(raw_query())
         .and(warp::header::optional::<String>("if-none-match"))
         .and(warp::header::optional::<String>("if-modified-since"))
+        .and(warp::header::optional::<String>("a-im"))
+        .and(warp::header::optional::<String>("range"))
+        .and(warp::header::optional::<String>("if-range"))
         .and(warp::any().map(move || windy.clone()))
         .and_then(handle)
 }
@@ -35,12 +42,17 @@ async fn handle(
     query: String,
     if_none_match: Option<String>,
     if_modified_since: Option<String>,
+    a_im: Option<String>,
+    range: Option<String>,
+    if_range: Option<String>,
     windy: Arc<Windy>,
 ) -> Result<Reply, Rejection> {
     let path = path.as_str();
     let rel = path.strip_prefix('/').unwrap_or(path);
 
-    if !rel.contains('/') && (rel.starts_with("wind_field.") || rel.starts_with("wind_cache.")) {
+    if !rel.contains('/') && (rel.starts_with("wind_field.")
+            || rel.starts_with("wind_cache.")
+            || rel.starts_with("wind_bundle.")) {
         if method == Method::GET || method == Method::HEAD {
             return Ok(serve_image(
                 &method,
@@ -48,6 +60,9 @@ async fn handle(
                 &query,
                 if_none_match,
                 if_modified_since,
+                a_im,
+                range,
+                if_range,
                 &windy,
             )
             .await);
@@ -77,6 +92,9 @@ async fn serve_image(
     query: &str,
     if_none_match: Option<String>,
     if_modified_since: Option<String>,
+    a_im: Option<String>,
+    range: Option<String>,
+    if_range: Option<String>,
     windy: &Windy,
 ) -> Reply {
     let (data, err) = windy.data(windy.response_timeout()).await;
@@ -99,11 +117,26 @@ async fn serve_image(
         return b.body(msg.into()).unwrap();
     };
 
-    let (content_type, encoded) = match name {
-        "wind_field.jpg" => ("image/jpeg", &data.jpg),
-        "wind_field.png" => ("image/png", &data.png),
+    let mut forecast_times = None;
+    let (content_type, encoded, delta) = match name {
+        "wind_field.jpg" => ("image/jpeg", &data.jpg, None),
+        "wind_field.png" => ("image/png", &data.png, None),
         "wind_cache.png" => match select_filter(query, data.filtered.len()) {
-            Ok(i) => ("image/png", &data.filtered[i]),
+            Ok(i) => ("image/png", &data.filtered[i], data.filtered_deltas[i].as_ref()),
+            Err((status, msg)) => return gfs_text(status, &msg, &data, &err),
+        },
+        // falls back to just the analysis if the forecasts weren't available
+        "wind_bundle.png" => match select_filter(query, data.filtered.len()) {
+            Ok(i) => match &data.bundle {
+                Some(bundle) => {
+                    forecast_times = Some(forecast_times_header(&bundle.times));
+                    ("image/png", &bundle.filtered[i], bundle.filtered_deltas[i].as_ref())
+                }
+                None => {
+                    forecast_times = Some(forecast_times_header(&[data.cycle.time()]));
+                    ("image/png", &data.filtered[i], data.filtered_deltas[i].as_ref())
+                }
+            },
             Err((status, msg)) => return gfs_text(status, &msg, &data, &err),
         },
         other => {
@@ -134,6 +167,13 @@ async fn serve_image(
     if let Some(e) = &err {
         b = b.header("x-gfs-refresh-error", header_value(e));
     }
+    if let Some(times) = forecast_times {
+        b = b.header("x-gfs-forecast-times", times);
+    }
+
+    if delta.is_some() {
+        b = b.header(header::VARY, "A-IM");
+    }
 
     if not_modified {
         return b
@@ -142,9 +182,57 @@ async fn serve_image(
             .unwrap();
     }
 
+    // only if the client has exactly the previous version
+    if let Some(delta) = delta
+        && let Some(inm) = if_none_match.as_deref()
+        && etag_matches(inm, &delta.base)
+        && a_im.as_deref().is_some_and(accepts_delta)
+    {
+        b = b
+            .status(StatusCode::IM_USED)
+            .header("im", DELTA_IM)
+            .header("delta-base", header_value(&delta.base))
+            .header(header::CONTENT_TYPE, content_type);
+        return if method == Method::HEAD {
+            b.header(header::CONTENT_LENGTH, delta.patch.data.len())
+                .body(Default::default())
+                .unwrap()
+        } else {
+            b.body(delta.patch.data.clone().into()).unwrap()
+        };
+    }
+
     b = b
-        .status(StatusCode::OK)
+        .header(header::ACCEPT_RANGES, "bytes")
         .header(header::CONTENT_TYPE, content_type);
+
+    // only resume if the client's partial copy is of this version (a strong
+    // etag is required for ranges, and dates are too imprecise)
+    let len = encoded.data.len();
+    if method == Method::GET
+        && let Some(range) = range.as_deref()
+        && if_range.as_deref().is_none_or(|ir| ir == encoded.etag)
+    {
+        match parse_range(range, len) {
+            Some(Ok((start, end))) => {
+                return b
+                    .status(StatusCode::PARTIAL_CONTENT)
+                    .header(header::CONTENT_RANGE, format!("bytes {start}-{end}/{len}"))
+                    .body(encoded.data[start..=end].to_vec().into())
+                    .unwrap();
+            }
+            Some(Err(())) => {
+                return b
+                    .status(StatusCode::RANGE_NOT_SATISFIABLE)
+                    .header(header::CONTENT_RANGE, format!("bytes */{len}"))
+                    .body(Default::default())
+                    .unwrap();
+            }
+            None => {} // unsupported, so send the whole thing
+        }
+    }
+
+    b = b.status(StatusCode::OK);
     if method == Method::HEAD {
         b.header(header::CONTENT_LENGTH, encoded.data.len())
             .body(Default::default())
@@ -183,12 +271,59 @@ fn select_filter(query: &str, count: usize) -> Result<usize, (StatusCode, String
     Ok(v as usize - 1)
 }
 
+/// The valid time of each layer as comma-separated unix seconds.
+fn forecast_times_header(times: &[DateTime<Utc>]) -> String {
+    times
+        .iter()
+        .map(|t| t.timestamp().to_string())
+        .collect::<Vec<_>>()
+        .join(",")
+}
+
+/// Parse a single-range `Range: bytes=` header into the inclusive byte range,
+/// returning `None` if it's unsupported (so the whole body should be sent), or
+/// an error if it's unsatisfiable.
+fn parse_range(range: &str, len: usize) -> Option<Result<(usize, usize), ()>> {
+    let spec = range.trim().strip_prefix("bytes=")?;
+    if spec.contains(',') {
+        return None; // multipart/byteranges isn't worth it for this
+    }
+    let (start, end) = spec.trim().split_once('-')?;
+    let (start, end) = match (start.trim(), end.trim()) {
+        ("", suffix) => {
+            let n: usize = suffix.parse().ok()?;
+            if n == 0 {
+                return Some(Err(()));
+            }
+            (len.saturating_sub(n), len.checked_sub(1)?)
+        }
+        (start, "") => (start.parse().ok()?, len.saturating_sub(1)),
+        (start, end) => {
+            let (start, end): (usize, usize) = (start.parse().ok()?, end.parse().ok()?);
+            if end < start {
+                return None;
+            }
+            (start, end.min(len.saturating_sub(1)))
+        }
+    };
+    if start >= len {
+        return Some(Err(()));
+    }
+    Some(Ok((start, end)))
+}
+
 fn etag_matches(inm: &str, etag: &str) -> bool {
     inm.split(',')
         .map(str::trim)
         .any(|e| e == etag || e.strip_prefix("W/") == Some(etag))
 }
 
+fn accepts_delta(a_im: &str) -> bool {
+    a_im.split(',')
+        .map(|im| im.split(';').next().unwrap_or("").trim())
+        .any(|im| im.eq_ignore_ascii_case(DELTA_IM))
+}
+
 fn not_modified_since(ims: &str, updated: DateTime<Utc>) -> bool {
     match DateTime::parse_from_rfc2822(ims) {
         Ok(t) => updated.timestamp() <= t.timestamp(),
@@ -224,3 +359,68 @@ fn header_value(s: &str) -> String {
         .map(|c| if c.is_control() { ' ' } else { c })
         .collect()
 }
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    #[test]
+    fn range() {
+        for (range, len, expected) in [
+            ("bytes=0-99", 1000, Some(Ok((0, 99)))),
+            ("bytes= 100 - 199 ", 1000, Some(Ok((100, 199)))),
+            // suffix
+            ("bytes=-100", 1000, Some(Ok((900, 999)))),
+            ("bytes=-2000", 1000, Some(Ok((0, 999)))),
+            ("bytes=-0", 1000, Some(Err(()))),
+            ("bytes=-1", 0, None),
+            // open
+            ("bytes=500-", 1000, Some(Ok((500, 999)))),
+            ("bytes=999-", 1000, Some(Ok((999, 999)))),
+            ("bytes=1000-", 1000, Some(Err(()))),
+            // end >= len is clamped
+            ("bytes=900-999", 1000, Some(Ok((900, 999)))),
+            ("bytes=900-5000", 1000, Some(Ok((900, 999)))),
+            // start >= len
+            ("bytes=1000-1001", 1000, Some(Err(()))),
+            ("bytes=0-0", 0, Some(Err(()))),
+            // multiple
+            ("bytes=0-1,5-6", 1000, None),
+            // malformed
+            ("bytes=", 1000, None),
+            ("bytes=abc", 1000, None),
+            ("bytes=a-b", 1000, None),
+            ("bytes=5-2", 1000, None),
+            ("bytes=-", 1000, None),
+            ("items=0-1", 1000, None),
+            ("0-1", 1000, None),
+        ] {
+            assert_eq!(parse_range(range, len), expected, "{range:?} of {len}");
+        }
+    }
+
+    #[test]
+    fn etag() {
+        let etag = "\"abc\"";
+        assert!(etag_matches("\"abc\"", etag));
+        assert!(etag_matches("W/\"abc\"", etag), "weak comparison");
+        assert!(etag_matches("\"xyz\", \"abc\"", etag));
+        assert!(etag_matches("\"xyz\",W/\"abc\"", etag));
+        assert!(!etag_matches("\"xyz\"", etag));
+        assert!(!etag_matches("abc", etag), "unquoted");
+        assert!(!etag_matches("\"abcd\"", etag));
+        assert!(!etag_matches("", etag));
+    }
+
+    #[test]
+    fn delta() {
+        assert!(accepts_delta("windy-delta"));
+        assert!(accepts_delta("Windy-Delta"));
+        assert!(accepts_delta("gzip, windy-delta"));
+        assert!(accepts_delta("windy-delta;q=0.5"));
+        assert!(accepts_delta(" vcdiff ;q=1 , windy-delta ; q=0.1"));
+        assert!(!accepts_delta("vcdiff"));
+        assert!(!accepts_delta("windy-deltas"));
+        assert!(!accepts_delta(""));
+    }
+}
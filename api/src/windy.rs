@@ -7,16 +7,17 @@ use std::time::Duration;
 
 use anyhow::{Context, Result, bail};
 use chrono::{DateTime, Utc};
-use image::{DynamicImage, RgbImage};
+use image::{DynamicImage, Rgb32FImage, RgbImage};
 use jpeg_encoder::{ColorType as JpegColorType, Encoder as JpegEncoder, SamplingFactor};
 use sha1::{Digest, Sha1};
 use tokio::sync::watch;
 use ureq::Agent;
 
 use crate::config::Config;
-use crate::decode::{create_wind_texture, filter_wind_texture};
+use crate::decode::{WindField, create_wind_texture, downscale_wind_texture, filter_wind_texture};
 use crate::gfs::{self, GfsCycle};
 
+#[derive(Clone)]
 pub struct Encoded {
     pub data: Vec<u8>,
     pub etag: String,
@@ -37,10 +38,64 @@ impl Encoded {
     }
 }
 
+/// A patch from a previous version of an image to the current one.
+#[derive(Clone)]
+pub struct Delta {
+    /// The ETag of the image the patch applies to.
+    pub base: String,
+    /// A PNG of the same size containing the wrapping per-channel difference
+    /// `current - base` (most of it is zero, so it compresses well).
+    pub patch: Encoded,
+}
+
+/// The last image of a previous cycle, which the deltas are generated from
+/// until the cycle changes again.
+struct DeltaBase {
+    etag: String,
+    img: RgbImage,
+}
+
+/// Several forecast hours of the filtered wind field, stacked vertically into a
+/// single image.
+pub struct Bundle {
+    pub filtered: Vec<Encoded>, // for ?filter=N
+    pub filtered_deltas: Vec<Option<Delta>>, // from the previous cycle, for ?filter=N
+    filtered_raw: Vec<RgbImage>, // for generating the next cycle's deltas
+    delta_bases: Vec<Option<Arc<DeltaBase>>>, // for regenerating this cycle's deltas
+    /// The valid time of each layer, top to bottom.
+    pub times: Vec<DateTime<Utc>>,
+}
+
+/// The filtered variants (in `?filter=N` order) of each forecast hour other
+/// than the analysis.
+type ForecastLayers = Vec<(u32, Vec<RgbImage>)>;
+
+/// The forecast hours for a bundle.
+enum Forecasts {
+    /// Just downloaded.
+    Fetched(Vec<(u32, WindField)>),
+    /// From the previous update of the same cycle.
+    Cached(Arc<ForecastLayers>),
+}
+
+/// An image from the previous update, for generating deltas.
+struct PrevImage<'a> {
+    cycle: GfsCycle,
+    encoded: &'a Encoded,
+    raw: &'a RgbImage,
+    delta: Option<&'a Delta>,
+    base: Option<&'a Arc<DeltaBase>>,
+}
+
 pub struct WindData {
     pub jpg: Encoded,
     pub png: Encoded,
     pub filtered: Vec<Encoded>, // pre-filtered for ?filter=N
+    pub filtered_deltas: Vec<Option<Delta>>, // from the previous cycle, for ?filter=N
+    filtered_raw: Vec<RgbImage>, // for generating the next cycle's deltas
+    delta_bases: Vec<Option<Arc<DeltaBase>>>, // for regenerating this cycle's deltas
+    pub bundle: Option<Bundle>,
+    forecast_layers: Option<Arc<ForecastLayers>>, // for the next update of the same cycle
     pub updated: DateTime<Utc>,
     pub cycle: GfsCycle,
     pub source: String,
@@ -95,7 +150,7 @@ impl Windy {
     pub async fn run(self: Arc<Self>, mut shutdown: watch::Receiver<bool>) {
         let cfg = &self.config;
         log::info!(
-            "starting update worker (gfs={} precision={} level={:?} timeout={:?} fetch_timeout={:?} max_prev_cycles={} max_retry={})",
+            "starting update worker (gfs={} precision={} level={:?} timeout={:?} fetch_timeout={:?} max_prev_cycles={} max_retry={} forecast_hours={:?})",
             cfg.gfs_base,
             cfg.precision,
             cfg.level,
@@ -103,6 +158,7 @@ impl Windy {
             cfg.fetch_timeout,
             cfg.max_prev_cycles,
             cfg.max_retry,
+            cfg.forecast_hours,
         );
 
         // now, then every interval
@@ -118,12 +174,13 @@ impl Windy {
 
             log::info!("updating wind field");
             self.tx.send_modify(|s| s.started += 1);
+            let prev = self.tx.borrow().data.clone();
             let result = match cfg.timeout {
-                Some(t) => match tokio::time::timeout(t, self.do_update()).await {
+                Some(t) => match tokio::time::timeout(t, self.do_update(prev)).await {
                     Ok(r) => r,
                     Err(_) => Err(anyhow::anyhow!("update timed out after {t:?}")),
                 },
-                None => self.do_update().await,
+                None => self.do_update(prev).await,
             };
             self.tx.send_modify(|s| {
                 s.completed = s.started;
@@ -145,7 +202,7 @@ impl Windy {
         }
     }
 
-    async fn do_update(&self) -> Result<WindData> {
+    async fn do_update(&self, prev_data: Option<Arc<WindData>>) -> Result<WindData> {
         let cfg = &self.config;
         let updated = cfg.gfs_time.unwrap_or_else(Utc::now);
         let mut cycle = GfsCycle::new(updated);
@@ -192,51 +249,288 @@ impl Windy {
             }
         };
 
+        // the forecast hours of a cycle don't change, so only fetch them once
+        let cached = prev_data
+            .as_deref()
+            .filter(|p| p.cycle.time() == cycle.time())
+            .and_then(|p| p.forecast_layers.clone());
+        let forecasts = match cached {
+            Some(layers) => {
+                log::info!("reusing forecast wind data from the previous update (cycle={cycle})");
+                Some(Forecasts::Cached(layers))
+            }
+            None => self.fetch_forecasts(&cycle).await.map(Forecasts::Fetched),
+        };
+
         log::info!(
             "got wind data, generating image (cycle={cycle} source={source} lat={} lng={})",
             field.height,
             field.width,
         );
 
-        tokio::task::spawn_blocking(move || build_wind_data(field, updated, cycle, source))
-            .await
-            .context("image task panicked")?
+        tokio::task::spawn_blocking(move || {
+            build_wind_data(field, forecasts, updated, cycle, source, prev_data.as_deref())
+        })
+        .await
+        .context("image task panicked")?
+    }
+
+    /// Fetches the forecast hours (other than the analysis) of the cycle for
+    /// the bundle, or `None` if any aren't available (yet).
+    async fn fetch_forecasts(&self, cycle: &GfsCycle) -> Option<Vec<(u32, WindField)>> {
+        let cfg = &self.config;
+        if cfg.forecast_hours.is_empty() {
+            return None;
+        }
+        let mut forecasts = Vec::new();
+        for &hour in cfg.forecast_hours.iter().filter(|&&h| h != 0) {
+            let url = match gfs::gfs_forecast_path(cycle, cfg.precision, hour) {
+                Ok(path) => format!("{}{}", cfg.gfs_base, path),
+                Err(e) => {
+                    log::warn!("failed to generate gfs forecast path: {e:#}");
+                    return None;
+                }
+            };
+            log::info!("attempting to fetch forecast wind data (hour={hour} url={url})");
+
+            let agent = self.agent.clone();
+            let level = cfg.level.clone();
+            let prec = cfg.precision;
+            let res = tokio::task::spawn_blocking(move || {
+                gfs::get_wind_grib(&agent, &url, prec, &level)
+            })
+            .await;
+            match res {
+                Ok(Ok(field)) => forecasts.push((hour, field)),
+                Ok(Err(e)) => {
+                    log::warn!("no forecast bundle for this update (cycle={cycle} hour={hour}): {e:#}");
+                    return None;
+                }
+                Err(e) => {
+                    log::warn!("forecast fetch task panicked: {e}");
+                    return None;
+                }
+            }
+        }
+        Some(forecasts)
     }
 }
 
 fn build_wind_data(
-    field: crate::decode::WindField,
+    field: WindField,
+    forecasts: Option<Forecasts>,
     updated: DateTime<Utc>,
     cycle: GfsCycle,
     source: String,
+    prev: Option<&WindData>,
 ) -> Result<WindData> {
     let texture = create_wind_texture(field.width, field.height, &field.uv)?;
-    let filtered = filter_wind_texture(&texture);
+    let filtered = filter_variants(&texture);
 
     let full: RgbImage = DynamicImage::from(texture).into_rgb8();
-    let filtered: RgbImage = DynamicImage::from(filtered).into_rgb8();
-
-    let full_meta = ImageMeta::new(&source, 0, updated);
-    let filtered_meta = ImageMeta::new(&source, 1, updated);
-
+    // the metadata (and the etag) only depends on the data, so it doesn't
+    // change when the same cycle is regenerated
+    let full_meta = ImageMeta::new(&source, 0, cycle);
     let jpg = encode_jpeg(&full, &full_meta).context("encode jpeg")?;
     let png = encode_png(&full, &full_meta).context("encode png")?;
-    let filtered_png = encode_png(&filtered, &filtered_meta).context("encode filtered png")?;
+
+    let mut filtered_png = Vec::with_capacity(filtered.len());
+    let mut filtered_deltas = Vec::with_capacity(filtered.len());
+    let mut delta_bases = Vec::with_capacity(filtered.len());
+    let mut filtered_meta = Vec::with_capacity(filtered.len());
+    for (i, img) in filtered.iter().enumerate() {
+        let meta = ImageMeta::new(&source, i + 1, cycle);
+        let encoded = Encoded::new(encode_png(img, &meta).context("encode filtered png")?);
+        let prev_img = prev.and_then(|p| {
+            Some(PrevImage {
+                cycle: p.cycle,
+                encoded: p.filtered.get(i)?,
+                raw: p.filtered_raw.get(i)?,
+                delta: p.filtered_deltas.get(i)?.as_ref(),
+                base: p.delta_bases.get(i)?.as_ref(),
+            })
+        });
+        let (delta, base) = build_delta(prev_img, cycle, &encoded, img, &meta)?;
+        filtered_deltas.push(delta);
+        delta_bases.push(base);
+        filtered_png.push(encoded);
+        filtered_meta.push(meta);
+    }
+
+    let forecast_layers = match forecasts {
+        Some(Forecasts::Fetched(forecasts)) => forecast_layers(&field, forecasts)?.map(Arc::new),
+        Some(Forecasts::Cached(layers)) => Some(layers),
+        None => None,
+    };
+    let prev_bundle = prev.and_then(|p| Some((p.cycle, p.bundle.as_ref()?)));
+    let bundle = match &forecast_layers {
+        Some(layers) => Some(
+            build_bundle(&filtered, layers, cycle, &filtered_meta, prev_bundle)
+                .context("build bundle")?,
+        ),
+        None => None,
+    };
 
     Ok(WindData {
         jpg: Encoded::new(jpg),
         png: Encoded::new(png),
-        filtered: vec![Encoded::new(filtered_png)],
+        filtered: filtered_png,
+        filtered_deltas,
+        filtered_raw: filtered,
+        delta_bases,
+        bundle,
+        forecast_layers,
         updated,
         cycle,
         source,
     })
 }
 
+/// The filtered variants of the wind texture, in `?filter=N` order: 1 is the
+/// standard one, and 2 is half of its resolution.
+fn filter_variants(texture: &Rgb32FImage) -> Vec<RgbImage> {
+    let filtered = filter_wind_texture(texture);
+    let small = downscale_wind_texture(&filtered);
+    vec![
+        DynamicImage::from(filtered).into_rgb8(),
+        DynamicImage::from(small).into_rgb8(),
+    ]
+}
+
+/// Filters the forecast hours for the bundle, or returns `None` if they can't
+/// be stacked with the analysis.
+fn forecast_layers(field: &WindField, forecasts: Vec<(u32, WindField)>) -> Result<Option<ForecastLayers>> {
+    let mut layers = Vec::with_capacity(forecasts.len());
+    for (hour, forecast) in forecasts {
+        if (forecast.width, forecast.height) != (field.width, field.height) {
+            log::warn!("not generating forecast bundle since hour {hour} has a different grid");
+            return Ok(None);
+        }
+        let texture = create_wind_texture(forecast.width, forecast.height, &forecast.uv)?;
+        layers.push((hour, filter_variants(&texture)));
+    }
+    Ok(Some(layers))
+}
+
+/// Builds the forecast bundle from the analysis (with its already filtered
+/// variants), which is always the first layer, and the other forecast hours.
+fn build_bundle(
+    filtered: &[RgbImage],
+    forecasts: &ForecastLayers,
+    cycle: GfsCycle,
+    meta: &[ImageMeta],
+    prev: Option<(GfsCycle, &Bundle)>,
+) -> Result<Bundle> {
+    let mut hours = vec![0];
+    let mut layers: Vec<Vec<&RgbImage>> = filtered.iter().map(|img| vec![img]).collect();
+    for (hour, variants) in forecasts {
+        hours.push(*hour);
+        for (variant, img) in layers.iter_mut().zip(variants) {
+            variant.push(img);
+        }
+    }
+    let mut encoded = Vec::with_capacity(layers.len());
+    let mut deltas = Vec::with_capacity(layers.len());
+    let mut bases = Vec::with_capacity(layers.len());
+    let mut raw = Vec::with_capacity(layers.len());
+    for (i, (variant, meta)) in layers.iter().zip(meta).enumerate() {
+        let (width, height) = variant[0].dimensions();
+        let stacked = RgbImage::from_raw(
+            width,
+            height * variant.len() as u32,
+            variant.iter().flat_map(|l| l.as_raw().iter().copied()).collect(),
+        )
+        .context("bundle buffer size mismatch")?;
+        let png = Encoded::new(encode_png(&stacked, meta).context("encode bundle png")?);
+        let prev_img = prev.and_then(|(cycle, b)| {
+            Some(PrevImage {
+                cycle,
+                encoded: b.filtered.get(i)?,
+                raw: b.filtered_raw.get(i)?,
+                delta: b.filtered_deltas.get(i)?.as_ref(),
+                base: b.delta_bases.get(i)?.as_ref(),
+            })
+        });
+        let (delta, base) = build_delta(prev_img, cycle, &png, &stacked, meta)?;
+        encoded.push(png);
+        deltas.push(delta);
+        bases.push(base);
+        raw.push(stacked);
+    }
+    let times = hours
+        .iter()
+        .map(|&h| cycle.time() + chrono::Duration::hours(h as i64))
+        .collect();
+    Ok(Bundle {
+        filtered: encoded,
+        filtered_deltas: deltas,
+        filtered_raw: raw,
+        delta_bases: bases,
+        times,
+    })
+}
+
+/// Builds the patch to the new filtered image from the last one of the
+/// previous cycle, returning it along with the base it was generated from.
+///
+/// The same cycle is fetched again every update until the next one is
+/// available, so the base is kept from the previous data until the cycle
+/// changes, and the previous patch is kept if the image didn't change.
+fn build_delta(
+    prev: Option<PrevImage>,
+    cycle: GfsCycle,
+    encoded: &Encoded,
+    img: &RgbImage,
+    meta: &ImageMeta,
+) -> Result<(Option<Delta>, Option<Arc<DeltaBase>>)> {
+    let Some(prev) = prev else {
+        return Ok((None, None));
+    };
+    let base = if prev.cycle.time() == cycle.time() {
+        let base = prev.base.cloned();
+        if prev.encoded.etag == encoded.etag {
+            return Ok((prev.delta.cloned(), base));
+        }
+        base
+    } else {
+        Some(Arc::new(DeltaBase {
+            etag: prev.encoded.etag.clone(),
+            img: prev.raw.clone(),
+        }))
+    };
+    let Some(base) = base else {
+        return Ok((None, None));
+    };
+    if base.img.dimensions() != img.dimensions() {
+        return Ok((None, Some(base)));
+    }
+    let diff: Vec<u8> = std::iter::zip(img.as_raw(), base.img.as_raw())
+        .map(|(&cur, &base)| cur.wrapping_sub(base))
+        .collect();
+    let diff = RgbImage::from_raw(img.width(), img.height(), diff)
+        .context("delta buffer size mismatch")?;
+    let patch = encode_png(&diff, meta).context("encode delta png")?;
+    if patch.len() >= encoded.data.len() {
+        log::info!("not using wind field delta since it isn't smaller than the full image");
+        return Ok((None, Some(base)));
+    }
+    log::info!(
+        "generated wind field delta ({} bytes, full image is {} bytes)",
+        patch.len(),
+        encoded.data.len(),
+    );
+    let delta = Delta {
+        base: base.etag.clone(),
+        patch: Encoded::new(patch),
+    };
+    Ok((Some(delta), Some(base)))
+}
+
 struct ImageMeta {
     /// The version of the API that generated the image.
     version: &'static str,
-    /// When the wind field was generated.
+    /// The GFS cycle the wind field was generated from (not the time it was
+    /// generated, so the image is the same if it's regenerated).
     generated: DateTime<Utc>,
     /// The GFS GRIB source path the wind field was generated from.
     grib: String,
@@ -246,10 +540,10 @@ struct ImageMeta {
 }
 
 impl ImageMeta {
-    fn new(source: &str, filter: usize, generated: DateTime<Utc>) -> Self {
+    fn new(source: &str, filter: usize, cycle: GfsCycle) -> Self {
         Self {
             version: option_env!("CARGO_PKG_VERSION").unwrap_or("unknown"),
-            generated,
+            generated: cycle.time(),
             grib: source.to_string(),
             filter,
         }
@@ -262,7 +262,7 @@ public final class CustomTheme {
 
     private static void notifyChanged() {
         seq.incrementAndGet();
-        WindyWallpaperRenderer.wakeAll();
+        WindyWallpaperRenderer.wakeAll(WindyWallpaperRenderer.CUSTOM_THEME_CHANGED);
         if (!listeners.isEmpty()) {
             new Handler(Looper.getMainLooper()).post(() -> {
                 for (final Runnable listener : listeners) {
@@ -0,0 +1,127 @@
+// SPDX-FileCopyrightText: 2026 Patrick Gaskin
+// SPDX-License-Identifier: AGPL-3.0-or-later
+package net.pgaskin.windy;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Scales the wallpaper framerate down as the device heats up, based on the
+ * thermal headroom forecast and status, whether it's charging (which heats it
+ * up too), and how long frames take to render. The scale drops quickly and
+ * recovers slowly, so it doesn't oscillate around a threshold.
+ */
+final class FpsGovernor {
+    private static final String TAG = "FpsGovernor";
+
+    private static final long UPDATE_INTERVAL = 10 * 1000000000L; // the headroom is rate-limited anyways
+    private static final long RECOVER_DELAY = 30 * 1000000000L; // since the last decrease
+    private static final int HEADROOM_FORECAST = 10; // seconds
+    private static final float HEADROOM_START = 0.7f; // 1 is where it'll be throttled
+    private static final float HEADROOM_START_CHARGING = 0.6f;
+    private static final float MIN_SCALE = 0.25f;
+    private static final float STEP_DOWN = 0.15f;
+    private static final float STEP_UP = 0.05f;
+    private static final float COST_BUDGET = 0.5f; // of the frame interval
+
+    private final Context context;
+    private final PowerManager powerManager;
+
+    private volatile int thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+    private volatile boolean charging;
+
+    private final PowerManager.OnThermalStatusChangedListener thermalListener = status -> {
+        Log.d(TAG, "got thermal status update (status: " + status + ")");
+        thermalStatus = status;
+    };
+
+    private final BroadcastReceiver chargingReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            charging = Intent.ACTION_POWER_CONNECTED.equals(intent.getAction());
+        }
+    };
+
+    // guarded by this (shared by all engines)
+    private float scale = 1;
+    private long updated;
+    private long decreased;
+
+    FpsGovernor(Context context) {
+        this.context = context;
+        this.powerManager = context.getSystemService(PowerManager.class);
+    }
+
+    void start() {
+        thermalStatus = powerManager.getCurrentThermalStatus();
+        charging = context.getSystemService(BatteryManager.class).isCharging();
+        powerManager.addThermalStatusListener(thermalListener);
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        context.registerReceiver(chargingReceiver, filter);
+    }
+
+    void stop() {
+        powerManager.removeThermalStatusListener(thermalListener);
+        context.unregisterReceiver(chargingReceiver);
+    }
+
+    /**
+     * Scales the target framerate, down to the minimum, using the renderer's
+     * frame timings.
+     */
+    synchronized int apply(int fps, int minFps, FrameStats stats) {
+        final long now = System.nanoTime();
+        if (updated == 0 || now - updated >= UPDATE_INTERVAL) {
+            updated = now;
+            update(now, fps, stats);
+        }
+        return Math.max(Math.min(fps, minFps), Math.round(fps * scale));
+    }
+
+    private void update(long now, int fps, FrameStats stats) {
+        float target = 1;
+
+        final float headroom = powerManager.getThermalHeadroom(HEADROOM_FORECAST); // NaN if unsupported or called too often
+        final float start = charging ? HEADROOM_START_CHARGING : HEADROOM_START;
+        if (!Float.isNaN(headroom) && headroom > start) {
+            target = Math.min(target, 1 - (headroom - start) / (1 - start) * 0.5f); // half at the throttling point
+        }
+
+        final int status = thermalStatus;
+        if (status >= PowerManager.THERMAL_STATUS_CRITICAL) {
+            target = MIN_SCALE;
+        } else if (status >= PowerManager.THERMAL_STATUS_SEVERE) {
+            target = Math.min(target, 0.5f);
+        } else if (status >= PowerManager.THERMAL_STATUS_MODERATE) {
+            target = Math.min(target, 0.75f);
+        }
+
+        // if frames are expensive, it's probably competing with something else
+        final FrameStats.Summary summary = stats.summarize();
+        if (summary != null && summary.costP95 > 0) {
+            final float budget = COST_BUDGET * 1e9f / Math.max(1, Math.round(fps * scale));
+            if (summary.costP95 > budget) {
+                target = Math.min(target, scale * budget / summary.costP95);
+            }
+        }
+
+        target = Math.max(MIN_SCALE, target);
+        final float prev = scale;
+        if (target < scale - 0.02f) {
+            scale = Math.max(target, scale - STEP_DOWN);
+            decreased = now;
+        } else if (target > scale + 0.02f && now - decreased >= RECOVER_DELAY) {
+            scale = Math.min(target, scale + STEP_UP);
+        }
+        if (scale != prev) {
+            Log.i(TAG, "fps scale " + prev + " -> " + scale + " (headroom: " + headroom + ", status: " + status + ", charging: " + charging + (summary != null ? ", p95 cost: " + summary.costP95 / 1000 + "us" : "") + ")");
+        }
+    }
+}
@@ -0,0 +1,149 @@
+// SPDX-FileCopyrightText: 2026 Patrick Gaskin
+// SPDX-License-Identifier: AGPL-3.0-or-later
+package net.pgaskin.windy;
+
+import android.content.Context;
+import android.hardware.display.DisplayManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Display;
+
+/**
+ * Schedules animation frames, either at fixed intervals, or aligned to the
+ * display's vsync at an integer divisor of the refresh rate so the intervals
+ * are even. The vsync phase comes from a Choreographer frame callback on a
+ * shared looper thread (at most once a second), and the times in between are
+ * predicted from it, so there aren't any extra wakeups per frame.
+ */
+final class FramePacer {
+    private static final String TAG = "FramePacer";
+
+    private static final long CALIBRATE_INTERVAL = 1000000000L;
+    private static final long CALIBRATE_TIMEOUT = 5 * CALIBRATE_INTERVAL; // e.g., if the display turned off
+    private static final long VSYNC_OFFSET = 500000L; // start just after vsync so the frame is ready for the next one
+    private static final long STATS_INTERVAL = 10 * 1000000000L;
+
+    private static Handler vsyncHandler;
+    private static boolean calibrating;
+    private static long calibrated; // when it was last requested
+    private static long vsyncTime; // a recent vsync (System.nanoTime)
+    private static long vsyncPeriod; // 0 if unknown
+
+    private final Context context;
+
+    private long lastTarget; // the vsync the last frame was scheduled for, 0 to resync
+    private long lastStart;
+    private long expectedInterval;
+
+    private long statsStart;
+    private int statsFrames;
+    private long jitterSum; // absolute deviation from the expected interval
+    private long jitterMax;
+    private volatile long jitterMean = -1;
+
+    FramePacer(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Records the start of an animation frame, for the interval jitter
+     * statistics.
+     */
+    void frameStarted(long now) {
+        final long interval = now - lastStart;
+        lastStart = now;
+        if (expectedInterval == 0 || interval > expectedInterval * 4) {
+            lastTarget = 0; // resumed after a pause, so don't count it
+            if (statsFrames == 0) {
+                statsStart = now;
+            }
+            return;
+        }
+        final long jitter = Math.abs(interval - expectedInterval);
+        jitterSum += jitter;
+        jitterMax = Math.max(jitterMax, jitter);
+        statsFrames++;
+        if (now - statsStart >= STATS_INTERVAL) {
+            jitterMean = jitterSum / statsFrames;
+            Log.d(TAG, "frame interval " + expectedInterval / 1000 + "us, jitter mean " + jitterMean / 1000 + "us max " + jitterMax / 1000 + "us over " + statsFrames + " frames");
+            statsStart = now;
+            statsFrames = 0;
+            jitterSum = 0;
+            jitterMax = 0;
+        }
+    }
+
+    /**
+     * The mean absolute deviation of the frame interval over the last stats
+     * window (ns), or -1 if unknown.
+     */
+    long jitter() {
+        return jitterMean;
+    }
+
+    /**
+     * Gets the time (System.nanoTime) the next frame should start at for the
+     * target framerate.
+     */
+    long next(long frameStart, int fps, boolean vsync) {
+        final long now = System.nanoTime();
+        final long period;
+        final long phase;
+        if (vsync) {
+            synchronized (FramePacer.class) {
+                if (now - calibrated >= CALIBRATE_INTERVAL) {
+                    calibrate(context, now);
+                }
+                period = vsyncPeriod;
+                phase = vsyncTime;
+            }
+        } else {
+            period = 0;
+            phase = 0;
+        }
+        if (period == 0) {
+            lastTarget = 0;
+            expectedInterval = 1000000000L / fps;
+            return frameStart + expectedInterval;
+        }
+
+        final long divisor = Math.max(1, Math.round(1000000000.0 / period / fps));
+        expectedInterval = divisor * period;
+        long target = lastTarget != 0 ? lastTarget + expectedInterval : now;
+        target = phase + Math.round((double) (target - phase) / period) * period; // snap to the vsync grid
+        if (target + VSYNC_OFFSET <= now) {
+            target = phase + ((now - phase) / period + 1) * period; // missed it, so use the next vsync
+        }
+        lastTarget = target;
+        return target + VSYNC_OFFSET;
+    }
+
+    private static void calibrate(Context context, long now) {
+        if (calibrating && now - calibrated < CALIBRATE_TIMEOUT) {
+            return;
+        }
+        calibrated = now;
+        final Display display = context.getSystemService(DisplayManager.class).getDisplay(Display.DEFAULT_DISPLAY);
+        final float hz = display != null ? display.getRefreshRate() : 0;
+        if (hz < 1) {
+            vsyncPeriod = 0;
+            return;
+        }
+        if (vsyncHandler == null) {
+            final HandlerThread thread = new HandlerThread("WindyVsync");
+            thread.setDaemon(true);
+            thread.start();
+            vsyncHandler = new Handler(thread.getLooper());
+        }
+        calibrating = true;
+        vsyncHandler.post(() -> Choreographer.getInstance().postFrameCallback(frameTimeNanos -> {
+            synchronized (FramePacer.class) {
+                vsyncTime = frameTimeNanos;
+                vsyncPeriod = (long) (1000000000.0 / hz);
+                calibrating = false;
+            }
+        }));
+    }
+}
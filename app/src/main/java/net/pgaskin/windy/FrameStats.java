@@ -0,0 +1,172 @@
+// SPDX-FileCopyrightText: 2026 Patrick Gaskin
+// SPDX-License-Identifier: AGPL-3.0-or-later
+package net.pgaskin.windy;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-frame CPU timings of a render loop, in a ring buffer written by the
+ * render thread and read without locking (readers drop entries overwritten
+ * while copying them).
+ */
+final class FrameStats {
+    private static final int CAPACITY = 512;
+    private static final long PAUSE = 1000000000L; // longer intervals aren't counted for the fps
+    private static final String PIPELINES_COLD = "pipelines_cold:"; // saved pipeline time key prefixes
+    private static final String PIPELINES_CACHED = "pipelines_cached:";
+
+    private final long[] start = new long[CAPACITY]; // System.nanoTime
+    private final long[] render = new long[CAPACITY]; // the native render call
+    private final long[] cost = new long[CAPACITY]; // the loop iteration, excluding waiting
+    private final long[] wait = new long[CAPACITY];
+    private final boolean[] missed = new boolean[CAPACITY]; // the frame took longer than its interval
+    private final AtomicLong count = new AtomicLong();
+
+    /** Records a frame. Must only be called from a single thread. */
+    void record(long frameStart, long renderNs, long costNs, long waitNs, boolean missedDeadline) {
+        final long n = count.get();
+        final int i = (int) (n % CAPACITY);
+        start[i] = frameStart;
+        render[i] = renderNs;
+        cost[i] = costNs;
+        wait[i] = waitNs;
+        missed[i] = missedDeadline;
+        count.lazySet(n + 1); // publishes the entry
+    }
+
+    static final class Summary {
+        int frames;
+        float fps;
+        int missed;
+        long renderP50, renderP95, renderP99;
+        long costP50, costP95, costP99;
+        long waitP50;
+
+        /** A short multi-line description. */
+        String format() {
+            return String.format(Locale.US, "%.1f fps, %d/%d missed\nrender %.2f/%.2f/%.2f ms\nframe %.2f/%.2f/%.2f ms\nwait %.1f ms (p50/p95/p99)",
+                    fps, missed, frames,
+                    renderP50 / 1e6, renderP95 / 1e6, renderP99 / 1e6,
+                    costP50 / 1e6, costP95 / 1e6, costP99 / 1e6,
+                    waitP50 / 1e6);
+        }
+    }
+
+    /** Summarizes the recent frames, or returns null if there aren't any. */
+    Summary summarize() {
+        final long end = count.get();
+        final long begin = Math.max(0, end - CAPACITY);
+        final int n = (int) (end - begin);
+        final long[] starts = new long[n], renders = new long[n], costs = new long[n], waits = new long[n];
+        final boolean[] misses = new boolean[n];
+        for (int j = 0; j < n; j++) {
+            final int i = (int) ((begin + j) % CAPACITY);
+            starts[j] = start[i];
+            renders[j] = render[i];
+            costs[j] = cost[i];
+            waits[j] = wait[i];
+            misses[j] = missed[i];
+        }
+        final int torn = (int) Math.min(n, Math.max(0, count.get() - CAPACITY - begin + 1)); // overwritten (or being written) while copying
+        if (n - torn <= 1) {
+            return null;
+        }
+
+        final Summary s = new Summary();
+        s.frames = n - torn;
+        long intervals = 0;
+        int counted = 0;
+        for (int j = torn; j < n; j++) {
+            if (misses[j]) {
+                s.missed++;
+            }
+            if (j > torn) {
+                final long interval = starts[j] - starts[j - 1];
+                if (interval > 0 && interval < PAUSE) {
+                    intervals += interval;
+                    counted++;
+                }
+            }
+        }
+        s.fps = intervals > 0 ? counted * 1e9f / intervals : 0;
+
+        final long[] r = Arrays.copyOfRange(renders, torn, n);
+        final long[] c = Arrays.copyOfRange(costs, torn, n);
+        final long[] w = Arrays.copyOfRange(waits, torn, n);
+        Arrays.sort(r);
+        Arrays.sort(c);
+        Arrays.sort(w);
+        s.renderP50 = percentile(r, 50);
+        s.renderP95 = percentile(r, 95);
+        s.renderP99 = percentile(r, 99);
+        s.costP50 = percentile(c, 50);
+        s.costP95 = percentile(c, 95);
+        s.costP99 = percentile(c, 99);
+        s.waitP50 = percentile(w, 50);
+        return s;
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        return sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * p / 100))];
+    }
+
+    /** Saves the summary for the GPU, so the ones seen on a device are kept. */
+    static void save(Context context, String gpu, Summary summary) {
+        getPreferences(context).edit()
+                .putString(gpu != null ? gpu : "unknown", summary.format())
+                .apply();
+    }
+
+    /**
+     * Saves how long the GPU took to compile the pipelines, separately for
+     * whether a saved pipeline cache was used.
+     */
+    static void savePipelineTime(Context context, String gpu, long nanos, boolean cached) {
+        if (nanos <= 0) {
+            return; // shared with another renderer
+        }
+        getPreferences(context).edit()
+                .putLong((cached ? PIPELINES_CACHED : PIPELINES_COLD) + (gpu != null ? gpu : "unknown"), nanos)
+                .apply();
+    }
+
+    /** The last saved summary and pipeline times for each GPU. */
+    static Map<String, String> saved(Context context) {
+        final Map<String, ?> all = getPreferences(context).getAll();
+        final Map<String, String> saved = new TreeMap<>();
+        for (final Map.Entry<String, ?> e : all.entrySet()) {
+            if (e.getValue() instanceof String) {
+                saved.put(e.getKey(), (String) e.getValue());
+            }
+        }
+        for (final Map.Entry<String, ?> e : all.entrySet()) {
+            if (!(e.getValue() instanceof Long)) {
+                continue;
+            }
+            final String gpu, label;
+            if (e.getKey().startsWith(PIPELINES_COLD)) {
+                gpu = e.getKey().substring(PIPELINES_COLD.length());
+                label = "pipelines (cold)";
+            } else if (e.getKey().startsWith(PIPELINES_CACHED)) {
+                gpu = e.getKey().substring(PIPELINES_CACHED.length());
+                label = "pipelines (cached)";
+            } else {
+                continue;
+            }
+            final String line = String.format(Locale.US, "%s %.1f ms", label, (Long) e.getValue() / 1e6);
+            saved.merge(gpu, line, (a, b) -> a + "\n" + b);
+        }
+        return saved;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.createDeviceProtectedStorageContext().getSharedPreferences("frame_stats", Context.MODE_PRIVATE);
+    }
+}
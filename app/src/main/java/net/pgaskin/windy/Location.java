@@ -50,7 +50,7 @@ public final class Location {
                 .putLong(KEY_UPDATED, System.currentTimeMillis())
                 .apply();
         currentSeq.incrementAndGet();
-        WindyWallpaperRenderer.wakeAll();
+        WindyWallpaperRenderer.wakeAll(WindyWallpaperRenderer.LOCATION_CHANGED);
     }
 
     /** Returns the time the stored location was last updated, or 0 if never. */
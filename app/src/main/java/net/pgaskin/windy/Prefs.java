@@ -6,6 +6,12 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 public final class Prefs {
     private static final String TAG = "Prefs";
 
@@ -18,6 +24,8 @@ public final class Prefs {
     public static final String KEY_DATA_CONSENT = "data_consent";
     public static final String KEY_MAX_FPS = "max_fps";
     public static final String KEY_STATIC_MODE = "static_mode";
+    public static final String KEY_VSYNC_PACING = "vsync_pacing";
+    public static final String KEY_PERFORMANCE_HUD = "performance_hud";
     public static final String KEY_THEME = "theme_service"; // class name
     public static final String KEY_GPU_MODEL = "gpu_model";
     public static final String KEY_CUSTOM_COLORS = "custom_colors"; // current
@@ -84,9 +92,30 @@ public final class Prefs {
         get(context).edit().putString(KEY_DATA_INTERVAL, String.valueOf(seconds)).apply();
     }
 
+    /**
+     * The preferred wind field URL.
+     */
     public static String dataUrl(Context context) {
-        final String url = get(context).getString(KEY_DATA_URL, null);
-        return url == null || url.trim().isEmpty() ? BuildConfig.WIND_FIELD_API_URL : url.trim();
+        return dataUrls(context).get(0);
+    }
+
+    /**
+     * The wind field mirrors, in the configured order: the user's
+     * (space-separated) URLs, then the built-in ones.
+     */
+    public static List<String> dataUrls(Context context) {
+        final Set<String> urls = new LinkedHashSet<>();
+        final String value = get(context).getString(KEY_DATA_URL, null);
+        if (value != null) {
+            for (final String url : value.trim().split("\\s+")) {
+                if (!url.isEmpty()) {
+                    urls.add(url);
+                }
+            }
+        }
+        urls.add(BuildConfig.WIND_FIELD_API_URL);
+        Collections.addAll(urls, BuildConfig.WIND_FIELD_API_MIRRORS);
+        return new ArrayList<>(urls);
     }
 
     /**
@@ -130,6 +159,21 @@ public final class Prefs {
         return get(context).getBoolean(KEY_STATIC_MODE, false);
     }
 
+    /**
+     * Whether to align animation frames to the display's vsync (see
+     * {@link FramePacer}).
+     */
+    public static boolean vsyncPacing(Context context) {
+        return get(context).getBoolean(KEY_VSYNC_PACING, true);
+    }
+
+    /**
+     * Whether to show frame timings over the preview (developer mode only).
+     */
+    public static boolean performanceHud(Context context) {
+        return developerMode(context) && get(context).getBoolean(KEY_PERFORMANCE_HUD, false);
+    }
+
     /**
      * Index of the last selected theme, or 0.
      */
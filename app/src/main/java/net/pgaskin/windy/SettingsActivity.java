@@ -42,6 +42,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.Locale;
+import java.util.Map;
 
 public class SettingsActivity extends Activity {
     @Override
@@ -78,7 +79,13 @@ public class SettingsActivity extends Activity {
         private Preference backgroundLocationPref;
         private Preference boundsPref;
         private Preference updateNowPref;
+        private PreferenceCategory dataCategory;
+        private Preference updateLogPref;
         private SwitchPreference meteredPref;
+        private PreferenceCategory renderingCategory;
+        private SwitchPreference vsyncPref;
+        private SwitchPreference hudPref;
+        private Preference frameStatsPref;
         private EditTextPreference urlPref;
         private Preference devicePref;
         private PreferenceCategory aboutCategory;
@@ -144,7 +151,7 @@ public class SettingsActivity extends Activity {
             privacy.setSelectable(false);
             locationCategory.addPreference(privacy);
 
-            final PreferenceCategory dataCategory = new PreferenceCategory(context);
+            dataCategory = new PreferenceCategory(context);
             dataCategory.setTitle(R.string.data);
             screen.addPreference(dataCategory);
 
@@ -165,6 +172,15 @@ public class SettingsActivity extends Activity {
             });
             dataCategory.addPreference(showTexture);
 
+            updateLogPref = new Preference(context);
+            updateLogPref.setTitle(R.string.update_log);
+            updateLogPref.setSummary(R.string.update_log_summary);
+            updateLogPref.setOnPreferenceClickListener(p -> {
+                showUpdateLogDialog();
+                return true;
+            });
+            dataCategory.addPreference(updateLogPref); // removed as needed (but this keeps the order)
+
             final ListPreference dataInterval = new ListPreference(context);
             dataInterval.setKey(Prefs.KEY_DATA_INTERVAL);
             dataInterval.setTitle(R.string.data_interval);
@@ -196,7 +212,7 @@ public class SettingsActivity extends Activity {
             urlPref.getEditText().setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_URI);
             urlPref.getEditText().setSingleLine();
             urlPref.setOnPreferenceChangeListener((p, value) -> {
-                final String url = normalizeUrl(String.valueOf(value));
+                final String url = normalizeUrls(String.valueOf(value));
                 if (url == null) {
                     Toast.makeText(getActivity(), R.string.data_url_invalid, Toast.LENGTH_SHORT).show();
                     return false;
@@ -209,7 +225,7 @@ public class SettingsActivity extends Activity {
             });
             dataCategory.addPreference(urlPref);
 
-            final PreferenceCategory renderingCategory = new PreferenceCategory(context);
+            renderingCategory = new PreferenceCategory(context);
             renderingCategory.setTitle(R.string.rendering);
             screen.addPreference(renderingCategory);
 
@@ -230,6 +246,29 @@ public class SettingsActivity extends Activity {
             staticMode.setDefaultValue(false);
             renderingCategory.addPreference(staticMode);
 
+            vsyncPref = new SwitchPreference(context);
+            vsyncPref.setKey(Prefs.KEY_VSYNC_PACING);
+            vsyncPref.setTitle(R.string.vsync_pacing);
+            vsyncPref.setSummary(R.string.vsync_pacing_summary);
+            vsyncPref.setDefaultValue(true);
+            renderingCategory.addPreference(vsyncPref); // removed as needed (but this keeps the order)
+
+            hudPref = new SwitchPreference(context);
+            hudPref.setKey(Prefs.KEY_PERFORMANCE_HUD);
+            hudPref.setTitle(R.string.performance_hud);
+            hudPref.setSummary(R.string.performance_hud_summary);
+            hudPref.setDefaultValue(false);
+            renderingCategory.addPreference(hudPref); // removed as needed (but this keeps the order)
+
+            frameStatsPref = new Preference(context);
+            frameStatsPref.setTitle(R.string.frame_stats);
+            frameStatsPref.setSummary(R.string.frame_stats_summary);
+            frameStatsPref.setOnPreferenceClickListener(p -> {
+                showFrameStatsDialog();
+                return true;
+            });
+            renderingCategory.addPreference(frameStatsPref); // removed as needed (but this keeps the order)
+
             devicePref = new Preference(context);
             devicePref.setLayoutResource(R.layout.preference_note);
             devicePref.setSelectable(false);
@@ -393,9 +432,21 @@ public class SettingsActivity extends Activity {
                       ? getString(R.string.data_builtin)
                       : formatUpdatedSource(context));
 
+            if (Prefs.developerMode(context)) {
+                dataCategory.addPreference(updateLogPref);
+                renderingCategory.addPreference(vsyncPref);
+                renderingCategory.addPreference(hudPref);
+                renderingCategory.addPreference(frameStatsPref);
+            } else {
+                dataCategory.removePreference(updateLogPref);
+                renderingCategory.removePreference(vsyncPref);
+                renderingCategory.removePreference(hudPref);
+                renderingCategory.removePreference(frameStatsPref);
+            }
+
             meteredPref.setEnabled(dataInterval > 0); // only limits automatic updates
 
-            urlPref.setSummary(Prefs.dataUrl(context));
+            urlPref.setSummary(String.join("\n", Prefs.dataUrls(context)));
 
             final String gpu = Prefs.gpuModel(context); // only known once the wallpaper has rendered
             final String device = gpu != null ? getString(R.string.device_note, Build.MODEL, gpu) : Build.MODEL;
@@ -426,6 +477,25 @@ public class SettingsActivity extends Activity {
             }
         }
 
+        /** Normalizes space-separated mirror URLs, returning null if any are invalid. */
+        private static String normalizeUrls(String value) {
+            final StringBuilder sb = new StringBuilder();
+            for (final String part : value.trim().split("\\s+")) {
+                if (part.isEmpty()) {
+                    continue;
+                }
+                final String url = normalizeUrl(part);
+                if (url == null) {
+                    return null;
+                }
+                if (sb.length() != 0) {
+                    sb.append(' ');
+                }
+                sb.append(url);
+            }
+            return sb.length() != 0 ? sb.toString() : BuildConfig.WIND_FIELD_API_URL;
+        }
+
         private static String normalizeUrl(String value) {
             String url = value.trim();
             if (url.isEmpty()) {
@@ -434,6 +504,9 @@ public class SettingsActivity extends Activity {
             if (!url.contains("://")) {
                 url = "https://" + url;
             }
+            if (!url.regionMatches(true, 0, "https:", 0, 6)) {
+                return WindFieldSource.isSupported(url) ? url : null; // a local file or document
+            }
             try {
                 final URL parsed = new URL(url);
                 if (!"https".equals(parsed.getProtocol()) || parsed.getHost().isEmpty()) {
@@ -502,8 +575,17 @@ public class SettingsActivity extends Activity {
                 Bitmap texture = null;
                 try {
                     final WindField.Snapshot snap = WindField.snapshot(context);
-                    texture = Bitmap.createBitmap(snap.width, snap.height, Bitmap.Config.ARGB_8888);
-                    texture.copyPixelsFromBuffer(ByteBuffer.wrap(snap.rgba));
+                    final int[] argb;
+                    try {
+                        final ByteBuffer rg = snap.rg.duplicate(); // don't move the shared position
+                        argb = new int[rg.remaining() / 2];
+                        for (int i = 0; i < argb.length; i++) {
+                            argb[i] = 0xFF000000 | (rg.get() & 0xFF) << 16 | (rg.get() & 0xFF) << 8;
+                        }
+                    } finally {
+                        WindField.release(snap);
+                    }
+                    texture = Bitmap.createBitmap(argb, snap.width, snap.height * snap.layers, Bitmap.Config.ARGB_8888); // layers stacked vertically
                 } catch (Throwable t) {
                     Log.e(TAG, "failed to load the wind texture: " + t);
                 }
@@ -526,6 +608,41 @@ public class SettingsActivity extends Activity {
             }).start();
         }
 
+        private void showUpdateLogDialog() {
+            final Context context = getActivity();
+            final StringBuilder sb = new StringBuilder();
+            for (final WindFieldUpdateLog.Record r : WindFieldUpdateService.updateLog(context)) {
+                if (sb.length() != 0) {
+                    sb.append("\n\n");
+                }
+                sb.append(r.format());
+            }
+            final AlertDialog.Builder builder = new AlertDialog.Builder(context)
+                    .setTitle(R.string.update_log)
+                    .setMessage(sb.length() != 0 ? sb : getString(R.string.update_log_empty))
+                    .setPositiveButton(android.R.string.ok, null);
+            if (sb.length() != 0) {
+                builder.setNeutralButton(R.string.update_log_clear, (dialog, which) -> WindFieldUpdateService.clearUpdateLog(context));
+            }
+            builder.show();
+        }
+
+        private void showFrameStatsDialog() {
+            final Context context = getActivity();
+            final StringBuilder sb = new StringBuilder(WindyWallpaperRenderer.describeFrameStats());
+            for (final Map.Entry<String, String> e : FrameStats.saved(context).entrySet()) {
+                if (sb.length() != 0) {
+                    sb.append("\n\n");
+                }
+                sb.append(getString(R.string.frame_stats_saved, e.getKey())).append('\n').append(e.getValue());
+            }
+            new AlertDialog.Builder(context)
+                    .setTitle(R.string.frame_stats)
+                    .setMessage(sb.length() != 0 ? sb : getString(R.string.frame_stats_empty))
+                    .setPositiveButton(android.R.string.ok, null)
+                    .show();
+        }
+
         private void showLocationDialog() {
             final Context context = getActivity();
             final View view = getActivity().getLayoutInflater().inflate(R.layout.dialog_location, null);
@@ -0,0 +1,139 @@
+// SPDX-FileCopyrightText: 2026 Patrick Gaskin
+// SPDX-License-Identifier: AGPL-3.0-or-later
+package net.pgaskin.windy;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Settled static-mode frames, saved so a new surface can show the frame
+ * without creating a renderer if nothing it depends on changed.
+ */
+final class StaticFrameCache {
+    private static final String TAG = "StaticFrameCache";
+
+    // big-endian magic, version, width, height, key length, the key (utf-8),
+    // then the row-major rgba8 pixels
+    private static final int MAGIC = 0x574E5346; // "WNSF"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20; // without the key
+    private static final int MAX_FILES = 4; // e.g., home and lock screen, both orientations
+    private static final long MAX_AGE = 60 * 60 * 1000L; // the forecast layers are interpolated by time
+
+    private StaticFrameCache() {
+    }
+
+    /** Identifies everything a static frame depends on. */
+    static String key(Context context, int themeIndex, float[] location, int width, int height, float dpiScale) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(BuildConfig.VERSION_CODE);
+        sb.append('|').append(themeIndex);
+        if (themeIndex == Themes.CUSTOM) {
+            sb.append(':').append(Arrays.hashCode(CustomTheme.colors(context)));
+            sb.append(':').append(Arrays.hashCode(CustomTheme.params(context)));
+        }
+        sb.append('|').append(WindField.version(context));
+        if (location != null) {
+            sb.append('|').append(String.format(Locale.US, "%.1f,%.1f", location[0], location[1])); // smaller moves barely change the frame
+        }
+        sb.append('|').append(width).append('x').append(height).append('@').append(dpiScale);
+        return sb.toString();
+    }
+
+    /**
+     * Reads the pixels (rgba8) of a recent frame for the key into a new direct
+     * buffer, or returns null if there isn't one.
+     */
+    static ByteBuffer load(Context context, String key, int width, int height) {
+        final File file = file(context, key);
+        if (System.currentTimeMillis() - file.lastModified() > MAX_AGE) {
+            return null; // also if it doesn't exist
+        }
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        try (final FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length);
+            while (header.hasRemaining()) {
+                if (ch.read(header) < 0) {
+                    return null;
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION
+                    || header.getInt() != width || header.getInt() != height
+                    || header.getInt() != keyBytes.length) {
+                return null;
+            }
+            final byte[] stored = new byte[keyBytes.length];
+            header.get(stored);
+            if (!Arrays.equals(stored, keyBytes)) {
+                return null; // hash collision
+            }
+            final ByteBuffer pixels = ByteBuffer.allocateDirect(width * height * 4);
+            while (pixels.hasRemaining()) {
+                if (ch.read(pixels) < 0) {
+                    return null;
+                }
+            }
+            pixels.flip();
+            return pixels;
+        } catch (Exception ex) {
+            Log.w(TAG, "failed to read static frame: " + ex);
+            return null;
+        }
+    }
+
+    /** Saves the pixels (rgba8) of a frame, replacing the oldest ones. */
+    static void save(Context context, String key, int width, int height, ByteBuffer pixels) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final File file = file(context, key);
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            file.getParentFile().mkdirs();
+            try (final FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length)
+                        .putInt(MAGIC)
+                        .putInt(VERSION)
+                        .putInt(width)
+                        .putInt(height)
+                        .putInt(keyBytes.length)
+                        .put(keyBytes);
+                header.flip();
+                final ByteBuffer data = pixels.duplicate(); // don't move the caller's position
+                while (header.hasRemaining()) {
+                    ch.write(header);
+                }
+                while (data.hasRemaining()) {
+                    ch.write(data);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception ex) {
+            Log.w(TAG, "failed to write static frame: " + ex);
+            tmp.delete();
+            return;
+        }
+        final File[] files = file.getParentFile().listFiles((dir, name) -> name.endsWith(".frame"));
+        if (files != null && files.length > MAX_FILES) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+            for (int i = MAX_FILES; i < files.length; i++) {
+                files[i].delete();
+            }
+        }
+    }
+
+    private static File file(Context context, String key) {
+        final File dir = new File(context.createDeviceProtectedStorageContext().getCacheDir(), "static_frames");
+        return new File(dir, String.format("%08x.frame", key.hashCode()));
+    }
+}
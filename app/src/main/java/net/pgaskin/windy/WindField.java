@@ -3,33 +3,80 @@
 package net.pgaskin.windy;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class WindField {
     private static final String TAG = "WindField";
     private static final AtomicInteger currentSeq = new AtomicInteger();
-    private static final Object currentBitmapLock = new Object();
-    private static Bitmap currentBitmap;
+    // pre-decoded cache: big-endian magic, version, width, height (of each
+    // layer), layers, reserved, the valid time of each layer (unix ms), then
+    // the row-major rg88 layers, top to bottom (must match
+    // GenerateWindCacheTask)
+    private static final String RAW_ASSET = "windy/wind_cache.bin";
+    private static final int RAW_MAGIC = 0x574E4446; // "WNDF"
+    private static final int RAW_VERSION = 3;
+    private static final int RAW_HEADER_SIZE = 24; // without the times
+    private static final int MAX_LAYERS = 16;
 
+    private static final Object currentSnapshotLock = new Object();
+    private static Snapshot currentSnapshot;
+    private static Future<Snapshot> pendingSnapshot;
+
+    private static final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "WindFieldLoader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * An immutable decoded wind field, shared by all renderers. The buffer is
+     * direct so it can be uploaded without copying it again. If there are
+     * multiple layers, they're forecasts to interpolate between by time.
+     *
+     * Snapshots are reference-counted: once every active renderer has
+     * uploaded it and all references are released, it's dropped, and loaded
+     * again (usually just mapped) if it's needed later.
+     */
     public static final class Snapshot {
-        public final byte[] rgba; // row-major rgba8888
+        public final ByteBuffer rg; // direct (possibly mapped), row-major rg88 layers (see packRg), do not modify
         public final int width;
-        public final int height;
+        public final int height; // of each layer
+        public final int layers;
+        public final long[] times; // unix ms, ascending, one per layer, do not modify
         public final int seq;
+        private int refs; // guarded by currentSnapshotLock
 
-        Snapshot(byte[] rgba, int width, int height, int seq) {
-            this.rgba = rgba;
+        Snapshot(ByteBuffer rg, int width, int height, long[] times, int seq) {
+            this.rg = rg;
             this.width = width;
             this.height = height;
+            this.layers = times.length;
+            this.times = times;
             this.seq = seq;
         }
     }
@@ -38,77 +85,462 @@ public class WindField {
         return currentSeq.get();
     }
 
+    /**
+     * Gets the current snapshot, waiting for it to load if necessary. It must
+     * be released with {@link #release} when it's no longer used.
+     */
     public static Snapshot snapshot(Context context) {
-        synchronized (currentBitmapLock) {
-            if (currentBitmap == null) {
-                Log.i(TAG, "loading initial wind field bitmap");
-                if (Prefs.dataInterval(context) != Prefs.INTERVAL_NEVER) {
-                    try (final InputStream is = Files.newInputStream(windCacheFile(context, false).toPath())) {
-                        currentBitmap = BitmapFactory.decodeStream(is);
-                    } catch (Exception ex) {
-                        // ignored; fall back to the embedded asset
-                    }
-                } else {
-                    Log.i(TAG, "wind field updates are disabled, using the built-in field");
-                }
-                if (currentBitmap == null) {
-                    try (final InputStream is = context.getAssets().open("windy/wind_cache.png")) {
-                        if ((currentBitmap = BitmapFactory.decodeStream(is)) == null) {
-                            throw new Exception("Failed to decode embedded wind field bitmap");
+        final Future<Snapshot> pending;
+        synchronized (currentSnapshotLock) {
+            if (currentSnapshot != null) {
+                currentSnapshot.refs++;
+                return currentSnapshot;
+            }
+            pending = loadAsync(context);
+        }
+        try {
+            final Snapshot snap = pending.get();
+            synchronized (currentSnapshotLock) {
+                snap.refs++;
+            }
+            return snap;
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Failed to load wind field", ex.getCause());
+        } catch (InterruptedException ex) {
+            throw new RuntimeException("Interrupted while loading wind field", ex);
+        }
+    }
+
+    /**
+     * Gets the current snapshot if it's already loaded, otherwise starts
+     * loading it in the background and returns null. Renderers are woken when
+     * it's ready. It must be released with {@link #release} when it's no
+     * longer used.
+     */
+    public static Snapshot snapshotIfReady(Context context) {
+        synchronized (currentSnapshotLock) {
+            if (currentSnapshot != null) {
+                currentSnapshot.refs++;
+                return currentSnapshot;
+            }
+            loadAsync(context);
+            return null;
+        }
+    }
+
+    /** Starts loading the current snapshot in the background if it isn't loaded. */
+    public static void preload(Context context) {
+        synchronized (currentSnapshotLock) {
+            if (currentSnapshot == null) {
+                loadAsync(context);
+            }
+        }
+    }
+
+    /**
+     * Releases a snapshot, dropping it if it's no longer referenced and every
+     * active renderer has already uploaded it.
+     */
+    public static void release(Snapshot snap) {
+        synchronized (currentSnapshotLock) {
+            if (--snap.refs == 0 && snap == currentSnapshot && WindyWallpaperRenderer.allUploaded(snap.seq)) {
+                Log.d(TAG, "dropping uploaded wind field snapshot");
+                currentSnapshot = null;
+            }
+        }
+    }
+
+    /** Drops the current snapshot if it isn't in use (it'll be loaded again if needed). */
+    public static void trimMemory() {
+        synchronized (currentSnapshotLock) {
+            if (currentSnapshot != null && currentSnapshot.refs == 0) {
+                Log.i(TAG, "dropping unused wind field snapshot");
+                currentSnapshot = null;
+            }
+        }
+    }
+
+    /** Starts loading the current snapshot if it isn't already. */
+    private static Future<Snapshot> loadAsync(Context context) {
+        synchronized (currentSnapshotLock) {
+            if (pendingSnapshot == null) {
+                final Context appContext = context.getApplicationContext();
+                final int seq = currentSeq.get();
+                pendingSnapshot = loader.submit(() -> {
+                    final long start = System.nanoTime();
+                    Snapshot snap = null;
+                    try {
+                        snap = load(appContext, seq);
+                        Log.i(TAG, "loaded wind field in " + (System.nanoTime() - start) / 1000000L + "ms");
+                        return snap;
+                    } finally {
+                        synchronized (currentSnapshotLock) {
+                            if (seq == currentSeq.get()) { // otherwise, it was replaced while loading
+                                currentSnapshot = snap;
+                                pendingSnapshot = null;
+                            }
+                        }
+                        if (snap != null) {
+                            WindyWallpaperRenderer.wakeAll(WindyWallpaperRenderer.WIND_FIELD_CHANGED);
                         }
-                    } catch (Exception ex1) {
-                        throw new RuntimeException(ex1);
                     }
+                });
+            }
+            return pendingSnapshot;
+        }
+    }
+
+    private static Snapshot load(Context context, int seq) {
+        if (Prefs.dataInterval(context) != Prefs.INTERVAL_NEVER) {
+            try (final FileChannel ch = FileChannel.open(rawCacheFile(context, false).toPath(), StandardOpenOption.READ)) {
+                Log.i(TAG, "mapping cached wind field");
+                return map(ch, 0, ch.size(), seq);
+            } catch (Exception ex) {
+                // ignored; try the png
+            }
+            Bitmap bitmap = null;
+            try (final InputStream is = Files.newInputStream(windCacheFile(context, false).toPath())) {
+                bitmap = BitmapFactory.decodeStream(is);
+            } catch (Exception ex) {
+                // ignored; fall back to the embedded asset
+            }
+            if (bitmap != null) {
+                Log.i(TAG, "decoding cached wind field bitmap (no pre-decoded cache yet)");
+                final Snapshot snap = toSnapshot(bitmap, WindFieldUpdateService.lastForecastTimes(context), seq);
+                try {
+                    writeRawCache(context, snap);
+                } catch (Exception ex) {
+                    Log.w(TAG, "failed to write pre-decoded wind field cache: " + ex);
                 }
+                return snap;
+            }
+        } else {
+            Log.i(TAG, "wind field updates are disabled, using the built-in field");
+        }
+        Log.i(TAG, "mapping embedded wind field");
+        try {
+            final AssetFileDescriptor afd = context.getAssets().openFd(RAW_ASSET); // stored uncompressed
+            try (final FileInputStream is = afd.createInputStream()) {
+                return map(is.getChannel(), afd.getStartOffset(), afd.getLength(), seq);
             }
-            return toSnapshot(currentBitmap, currentSeq.get());
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to load embedded wind field", ex);
         }
     }
 
-    private static Snapshot toSnapshot(Bitmap bitmap, int seq) {
+    /** Maps a pre-decoded wind field, which stays valid after the channel is closed. */
+    private static Snapshot map(FileChannel ch, long offset, long size, int seq) throws Exception {
+        if (size < RAW_HEADER_SIZE) {
+            throw new Exception("Truncated wind field cache");
+        }
+        final MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        if (buf.getInt() != RAW_MAGIC || buf.getInt() != RAW_VERSION) {
+            throw new Exception("Unsupported wind field cache");
+        }
+        final int width = buf.getInt();
+        final int height = buf.getInt();
+        final int layers = buf.getInt();
+        buf.getInt(); // reserved
+        if (layers < 1 || layers > MAX_LAYERS) {
+            throw new Exception("Invalid wind field cache layer count " + layers);
+        }
+        if (width <= 0 || height <= 0 || (long) width * height * layers * 2 != size - RAW_HEADER_SIZE - layers * 8L) {
+            throw new Exception("Invalid wind field cache size " + width + "x" + height + "x" + layers);
+        }
+        final long[] times = new long[layers];
+        for (int i = 0; i < layers; i++) {
+            times[i] = buf.getLong();
+        }
+        return new Snapshot(buf.slice(), width, height, times, seq);
+    }
+
+    private static void writeRawCache(Context context, Snapshot snap) throws Exception {
+        final File tmp = rawCacheFile(context, true);
+        try (final FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer header = ByteBuffer.allocate(RAW_HEADER_SIZE + snap.layers * 8)
+                    .putInt(RAW_MAGIC)
+                    .putInt(RAW_VERSION)
+                    .putInt(snap.width)
+                    .putInt(snap.height)
+                    .putInt(snap.layers)
+                    .putInt(0);
+            for (final long time : snap.times) {
+                header.putLong(time);
+            }
+            header.flip();
+            final ByteBuffer pixels = snap.rg.duplicate(); // don't move the shared position
+            while (header.hasRemaining()) {
+                ch.write(header);
+            }
+            while (pixels.hasRemaining()) {
+                ch.write(pixels);
+            }
+        }
+        Files.move(tmp.toPath(), rawCacheFile(context, false).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Packs the bitmap into a direct buffer, recycling it. If there are
+     * multiple times, the bitmap is split vertically into that many layers.
+     */
+    private static Snapshot toSnapshot(Bitmap bitmap, long[] times, int seq) {
         final Bitmap rgbaBitmap = bitmap.getConfig() == Bitmap.Config.ARGB_8888
                 ? bitmap
                 : bitmap.copy(Bitmap.Config.ARGB_8888, false);
         final int width = rgbaBitmap.getWidth();
         final int height = rgbaBitmap.getHeight();
+        if (times == null || times.length == 0 || times.length > MAX_LAYERS || height % times.length != 0) {
+            if (times != null && times.length > 1) {
+                Log.w(TAG, "wind field height " + height + " doesn't fit " + times.length + " layers, using it as a single one");
+            }
+            times = new long[]{times != null && times.length != 0 ? times[0] : 0};
+        }
         final byte[] rgba = new byte[width * height * 4];
         rgbaBitmap.copyPixelsToBuffer(ByteBuffer.wrap(rgba));
-        return new Snapshot(rgba, width, height, seq);
+        if (rgbaBitmap != bitmap) {
+            rgbaBitmap.recycle();
+        }
+        bitmap.recycle();
+        final ByteBuffer rg = ByteBuffer.allocateDirect(width * height * 2);
+        packRg(rgba, rg);
+        rg.rewind();
+        return new Snapshot(rg, width, height / times.length, times, seq);
+    }
+
+    /**
+     * Packs rgba8888 (unit direction in R/G, normalized speed in B) into rg88
+     * (the direction scaled by the square root of the speed). Must match
+     * {@code pack_wind_field} in core/src/render.rs.
+     */
+    private static void packRg(byte[] rgba, ByteBuffer rg) {
+        for (int i = 0; i < rgba.length; i += 4) {
+            final float u = (rgba[i] & 0xFF) / 255f * 2 - 1;
+            final float v = (rgba[i + 1] & 0xFF) / 255f * 2 - 1;
+            final float len = (float) Math.sqrt(u * u + v * v);
+            final float scale = len > 0 ? (float) Math.sqrt((rgba[i + 2] & 0xFF) / 255f) / len : 0;
+            rg.put(packRgComponent(u * scale));
+            rg.put(packRgComponent(v * scale));
+        }
+    }
+
+    private static byte packRgComponent(float c) {
+        return (byte) Math.max(0, Math.min(255, Math.round((c * 0.5f + 0.5f) * 255)));
     }
 
     public static void invalidate() {
-        synchronized (currentBitmapLock) {
-            if (currentBitmap != null) {
-                currentBitmap.recycle();
-                currentBitmap = null;
-            }
+        synchronized (currentSnapshotLock) {
+            currentSnapshot = null;
+            pendingSnapshot = null; // it'll be discarded since the seq changed
             currentSeq.addAndGet(1);
         }
-        WindyWallpaperRenderer.wakeAll();
+        WindyWallpaperRenderer.wakeAll(WindyWallpaperRenderer.WIND_FIELD_CHANGED);
+    }
+
+    /**
+     * Identifies the field which would currently be loaded, without loading
+     * it, for caching things rendered from it.
+     */
+    static String version(Context context) {
+        if (Prefs.dataInterval(context) != Prefs.INTERVAL_NEVER) {
+            final File file = windCacheFile(context, false);
+            if (file.exists()) {
+                return file.lastModified() + ":" + file.length();
+            }
+        }
+        return "embedded";
     }
 
     private static File windCacheFile(Context context, boolean temp) {
         return new File(context.createDeviceProtectedStorageContext().getFilesDir(), "wind_cache.png" + (temp ? ".tmp" : ""));
     }
 
-    public static void updateCache(Context context, InputStream src) throws Exception {
-        Log.i(TAG, "updating cached field pixmap");
+    private static File rawCacheFile(Context context, boolean temp) {
+        return new File(context.createDeviceProtectedStorageContext().getFilesDir(), "wind_cache.bin" + (temp ? ".tmp" : ""));
+    }
 
-        Files.copy(src, windCacheFile(context, true).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    /**
+     * Replaces the cached field, which is split into layers if there are
+     * multiple forecast times (unix ms). If resuming, src continues the
+     * partial download (see {@link #partialCacheLength}) from that offset.
+     * If the download is interrupted, the partial download is kept.
+     */
+    public static void updateCache(Context context, InputStream src, long[] times, long resumeFrom) throws Exception {
+        Log.i(TAG, "updating cached field pixmap" + (resumeFrom != 0 ? " (resuming from " + resumeFrom + " bytes)" : ""));
 
-        final Bitmap img = BitmapFactory.decodeFile(windCacheFile(context, true).toString());
+        final Path tmp = windCacheFile(context, true).toPath();
+        final byte[] prefix;
+        if (resumeFrom != 0) {
+            try (final FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ch.truncate(resumeFrom); // in case a write was torn
+            }
+            prefix = Files.readAllBytes(tmp);
+            if (prefix.length != resumeFrom) {
+                throw new Exception("Partial wind field is " + prefix.length + " bytes, not " + resumeFrom);
+            }
+        } else {
+            prefix = new byte[0];
+        }
+
+        // decode while it's downloading, saving the bytes as they're read
+        final long start = System.nanoTime();
+        final Bitmap img;
+        try (final OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, resumeFrom != 0 ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+             final InputStream is = new BufferedInputStream(new SequenceInputStream(new ByteArrayInputStream(prefix), new TeeInputStream(src, out)))) {
+            img = BitmapFactory.decodeStream(is);
+            final byte[] buf = new byte[8192];
+            while (is.read(buf) != -1) {
+                // drain anything after the image so the saved file is complete
+            }
+        }
         if (img == null) {
+            discardPartialCache(context); // complete, but not something we can resume
             throw new Exception("Failed to decode input bitmap");
         }
-        synchronized (currentBitmapLock) {
-            if (currentBitmap != null) {
-                currentBitmap.recycle();
+        Log.i(TAG, "downloaded and decoded wind field in " + (System.nanoTime() - start) / 1000000L + "ms");
+        install(context, img, times);
+    }
+
+    /**
+     * Patches the cached field with a delta from the previous version (see
+     * {@code Delta} in api/src/windy.rs), returning false if there's no
+     * cached field it can be applied to. Bundles are patched as a whole, so
+     * the delta is split into the same layers.
+     */
+    public static boolean patchCache(Context context, InputStream src, long[] times) throws Exception {
+        Log.i(TAG, "patching cached field pixmap");
+
+        // the pre-decoded cache is packed, so patch the original
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        opts.inPremultiplied = false; // the deltas are data, not colors
+        final Bitmap base;
+        try (final InputStream is = Files.newInputStream(windCacheFile(context, false).toPath())) {
+            base = BitmapFactory.decodeStream(new BufferedInputStream(is), null, opts);
+        } catch (Exception ex) {
+            Log.w(TAG, "no cached wind field to patch: " + ex);
+            return false;
+        }
+        if (base == null) {
+            Log.w(TAG, "failed to decode the cached wind field to patch");
+            return false;
+        }
+        final int width = base.getWidth();
+        final int height = base.getHeight();
+
+        final Bitmap delta = BitmapFactory.decodeStream(new BufferedInputStream(src), null, opts);
+        if (delta == null) {
+            throw new Exception("Failed to decode wind field delta");
+        }
+        if (delta.getWidth() != width || delta.getHeight() != height) {
+            Log.w(TAG, "wind field delta size " + delta.getWidth() + "x" + delta.getHeight() + " doesn't match the cached " + width + "x" + height);
+            delta.recycle();
+            base.recycle();
+            return false;
+        }
+
+        final byte[] px = new byte[width * height * 4];
+        final byte[] dpx = new byte[px.length];
+        base.copyPixelsToBuffer(ByteBuffer.wrap(px));
+        base.recycle();
+        delta.copyPixelsToBuffer(ByteBuffer.wrap(dpx));
+        delta.recycle();
+        for (int i = 0; i < px.length; i++) {
+            if (i % 4 != 3) {
+                px[i] += dpx[i]; // wrapping, like the api, keeping the alpha
+            }
+        }
+
+        final Bitmap img = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        img.copyPixelsFromBuffer(ByteBuffer.wrap(px));
+        try (final OutputStream out = Files.newOutputStream(windCacheFile(context, true).toPath())) {
+            if (!img.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                throw new Exception("Failed to encode patched wind field");
             }
-            currentBitmap = img;
-            currentSeq.addAndGet(1);
         }
-        WindyWallpaperRenderer.wakeAll();
+        install(context, img, times);
+        return true;
+    }
+
+    /** The length of the partially downloaded field, or zero. */
+    public static long partialCacheLength(Context context) {
+        return windCacheFile(context, true).length(); // zero if it doesn't exist
+    }
+
+    public static void discardPartialCache(Context context) {
+        if (!windCacheFile(context, true).delete() && windCacheFile(context, true).exists()) {
+            Log.w(TAG, "failed to delete partial wind field");
+        }
+    }
+
+    /** Replaces the current field with a new one, saving the temp cache file. */
+    private static void install(Context context, Bitmap img, long[] times) throws Exception {
+        // not under the lock since renderers take it on their frame path
+        Snapshot snap = toSnapshot(img, times, -1);
+        final File raw = rawCacheFile(context, false);
+        try {
+            writeRawCache(context, snap);
+            try (final FileChannel ch = FileChannel.open(raw.toPath(), StandardOpenOption.READ)) {
+                snap = map(ch, 0, ch.size(), -1); // file-backed pages are cheaper to keep around
+            }
+        } catch (Exception ex) {
+            Log.w(TAG, "failed to write pre-decoded wind field cache: " + ex);
+            if (!raw.delete() && raw.exists()) { // otherwise it'd be loaded instead of the new png
+                Log.w(TAG, "failed to delete outdated pre-decoded wind field cache");
+            }
+        }
+        synchronized (currentSnapshotLock) {
+            pendingSnapshot = null; // it'll be discarded since the seq changed
+            currentSnapshot = new Snapshot(snap.rg, snap.width, snap.height, snap.times, currentSeq.addAndGet(1));
+        }
+        WindyWallpaperRenderer.wakeAll(WindyWallpaperRenderer.WIND_FIELD_CHANGED);
 
         Files.move(windCacheFile(context, true).toPath(), windCacheFile(context, false).toPath(), StandardCopyOption.ATOMIC_MOVE);
     }
+
+    /** Copies everything read from an input stream to an output stream. */
+    private static final class TeeInputStream extends FilterInputStream {
+        private final OutputStream out;
+
+        TeeInputStream(InputStream in, OutputStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                out.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                out.write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final byte[] buf = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                final int r = read(buf, 0, (int) Math.min(n - skipped, buf.length));
+                if (r == -1) {
+                    break;
+                }
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
 }
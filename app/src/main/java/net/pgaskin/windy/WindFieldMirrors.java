@@ -0,0 +1,155 @@
+// SPDX-FileCopyrightText: 2026 Patrick Gaskin
+// SPDX-License-Identifier: AGPL-3.0-or-later
+package net.pgaskin.windy;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the health of wind field mirrors so updates try the fastest one
+ * which is working and up to date first.
+ */
+final class WindFieldMirrors {
+    private static final String KEY = "mirrors";
+    private static final long BACKOFF = 15 * 60 * 1000L; // doubled for each consecutive failure
+    private static final long BACKOFF_MAX = 6 * 60 * 60 * 1000L;
+
+    private WindFieldMirrors() {
+    }
+
+    private static final class Health {
+        final String url;
+        long ttfbMs = -1; // moving average, -1 if unknown
+        int failures; // consecutive
+        long lastFailure; // unix ms
+        String cycle; // the last X-GFS-Cycle it returned
+        String etag; // the last ETag it returned
+
+        Health(String url) {
+            this.url = url;
+        }
+
+        boolean backingOff(long now) {
+            if (failures == 0) {
+                return false;
+            }
+            final long backoff = Math.min(BACKOFF << Math.min(failures - 1, 16), BACKOFF_MAX);
+            return now - lastFailure < backoff;
+        }
+
+        private String encode() {
+            return url + "\t" + ttfbMs + "\t" + failures + "\t" + lastFailure
+                    + "\t" + (cycle != null ? cycle : "") + "\t" + (etag != null ? etag : "");
+        }
+
+        private static Health decode(String line) {
+            final String[] f = line.split("\t", -1);
+            if (f.length != 6) {
+                return null;
+            }
+            try {
+                final Health h = new Health(f[0]);
+                h.ttfbMs = Long.parseLong(f[1]);
+                h.failures = Integer.parseInt(f[2]);
+                h.lastFailure = Long.parseLong(f[3]);
+                h.cycle = f[4].isEmpty() ? null : f[4];
+                h.etag = f[5].isEmpty() ? null : f[5];
+                return h;
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Orders the mirrors by preference. Mirrors which recently failed come
+     * last, then ones behind the newest cycle seen from any mirror, then ones
+     * which disagree with the cached field's ETag for the same cycle (so
+     * conditional requests, deltas, and resuming would fail), with ties
+     * broken by the time to first byte. Unknown mirrors are tried in the
+     * original order before known ones.
+     */
+    static synchronized List<String> order(SharedPreferences prefs, List<String> urls, String etag, String cycle) {
+        final Map<String, Health> health = load(prefs);
+        if (health.keySet().retainAll(urls)) {
+            save(prefs, health); // forget removed mirrors
+        }
+        String newest = null;
+        for (final String url : urls) {
+            final Health h = health.get(url);
+            if (h != null && h.cycle != null && (newest == null || h.cycle.compareTo(newest) > 0)) {
+                newest = h.cycle; // YYYYMMDD.HH, so it sorts lexicographically
+            }
+        }
+        final long now = System.currentTimeMillis();
+        final long[] rank = new long[urls.size()];
+        for (int i = 0; i < urls.size(); i++) {
+            final Health h = health.get(urls.get(i));
+            if (h == null) {
+                continue;
+            }
+            int tier = 0;
+            if (h.backingOff(now)) {
+                tier = 3;
+            } else if (newest != null && (h.cycle == null || h.cycle.compareTo(newest) < 0)) {
+                tier = 2;
+            } else if (h.cycle != null && h.cycle.equals(cycle) && etag != null && !etag.equals(h.etag)) {
+                tier = 1;
+            }
+            rank[i] = (long) tier << 40 | Math.min(Math.max(h.ttfbMs, 0), (1L << 40) - 1);
+        }
+        final List<Integer> idx = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            idx.add(i);
+        }
+        idx.sort((a, b) -> Long.compare(rank[a], rank[b])); // stable
+        final List<String> ordered = new ArrayList<>();
+        for (final int i : idx) {
+            ordered.add(urls.get(i));
+        }
+        return ordered;
+    }
+
+    static synchronized void success(SharedPreferences prefs, String url, long ttfbMs, String etag, String cycle) {
+        final Map<String, Health> health = load(prefs);
+        final Health h = health.computeIfAbsent(url, Health::new);
+        if (ttfbMs >= 0) {
+            h.ttfbMs = h.ttfbMs < 0 ? ttfbMs : (h.ttfbMs * 3 + ttfbMs) / 4;
+        }
+        h.failures = 0;
+        h.cycle = cycle;
+        h.etag = etag;
+        save(prefs, health);
+    }
+
+    static synchronized void failure(SharedPreferences prefs, String url) {
+        final Map<String, Health> health = load(prefs);
+        final Health h = health.computeIfAbsent(url, Health::new);
+        h.failures++;
+        h.lastFailure = System.currentTimeMillis();
+        save(prefs, health);
+    }
+
+    private static Map<String, Health> load(SharedPreferences prefs) {
+        final Map<String, Health> health = new HashMap<>();
+        for (final String line : prefs.getString(KEY, "").split("\n")) {
+            final Health h = line.isEmpty() ? null : Health.decode(line);
+            if (h != null) {
+                health.put(h.url, h);
+            }
+        }
+        return health;
+    }
+
+    private static void save(SharedPreferences prefs, Map<String, Health> health) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Health h : health.values()) {
+            sb.append(h.encode()).append('\n');
+        }
+        prefs.edit().putString(KEY, sb.toString()).apply();
+    }
+}
@@ -0,0 +1,284 @@
+// SPDX-FileCopyrightText: 2026 Patrick Gaskin
+// SPDX-License-Identifier: AGPL-3.0-or-later
+package net.pgaskin.windy;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Network;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Where wind field updates are fetched from. Responses use HTTP semantics
+ * (status codes and headers, see api/src/server.rs) so
+ * {@link WindFieldUpdateService} can treat all of them the same way, but
+ * sources only need to support what makes sense for them (e.g., a local file
+ * never returns a delta).
+ */
+interface WindFieldSource {
+    String DELTA_IM = "windy-delta"; // see api/src/server.rs
+
+    /** A conditional request for the wind field. */
+    final class Request {
+        /** The ETag of the cached field (If-None-Match), or null. */
+        String etag;
+        /** Whether a delta from {@link #etag} is acceptable (A-IM). */
+        boolean delta;
+        /** The offset to resume a partial download from (Range), or 0. */
+        long resumeFrom;
+        /** The ETag of the partial download (If-Range), required if resuming. */
+        String resumeEtag;
+        /** Sent to network sources. */
+        String userAgent;
+    }
+
+    /** A response, which must be closed. */
+    abstract class Response implements Closeable {
+        /** The HTTP status (200, 206, 226, 304, or an error). */
+        abstract int status() throws IOException;
+
+        /** A description of the status. */
+        String message() throws IOException {
+            return null;
+        }
+
+        /** A header (case-insensitive), or null. */
+        abstract String header(String name);
+
+        /** The body, streamed. */
+        abstract InputStream body() throws IOException;
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** A response with a fixed status, headers, and body. */
+    final class Fixed extends Response {
+        private final int status;
+        private final Map<String, String> headers = new HashMap<>();
+        private final InputStream body;
+
+        Fixed(int status, String etag, Map<String, String> headers, InputStream body) {
+            this.status = status;
+            if (headers != null) {
+                for (final Map.Entry<String, String> h : headers.entrySet()) {
+                    this.headers.put(h.getKey().toLowerCase(Locale.ROOT), h.getValue());
+                }
+            }
+            if (etag != null) {
+                this.headers.put("etag", etag);
+            }
+            this.body = body != null ? body : new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        int status() {
+            return status;
+        }
+
+        @Override
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        InputStream body() {
+            return body;
+        }
+
+        @Override
+        public void close() {
+            try {
+                body.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    Response fetch(Request req) throws Exception;
+
+    /** For logging. */
+    String describe();
+
+    /**
+     * Gets the source for a https, file, or content URI (e.g., from the
+     * storage access framework, or {@link Context#getExternalFilesDir} for
+     * sideloaded fields), using the network if provided (https only).
+     */
+    static WindFieldSource forUrl(Context context, String url, Network net) throws Exception {
+        final Uri uri = Uri.parse(url);
+        final String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase(Locale.ROOT) : "";
+        switch (scheme) {
+            case "https":
+                return new Https(new URL(url), net);
+            case "file":
+            case ContentResolver.SCHEME_CONTENT:
+                return new Document(context, uri);
+            default:
+                throw new Exception("wind field url must be https, file, or content");
+        }
+    }
+
+    /** Whether the URL is a supported source. */
+    static boolean isSupported(String url) {
+        final String scheme = Uri.parse(url).getScheme();
+        return "https".equalsIgnoreCase(scheme)
+                || "file".equalsIgnoreCase(scheme)
+                || ContentResolver.SCHEME_CONTENT.equalsIgnoreCase(scheme);
+    }
+
+    /** The api server (or a mirror of it). */
+    final class Https implements WindFieldSource {
+        final URL url;
+        private final Network net;
+
+        Https(URL url, Network net) {
+            this.url = url;
+            this.net = net;
+        }
+
+        @Override
+        public Response fetch(Request req) throws Exception {
+            final HttpsURLConnection conn = (HttpsURLConnection) (net != null ? net.openConnection(url) : url.openConnection());
+            if (req.userAgent != null) {
+                conn.setRequestProperty("User-Agent", req.userAgent);
+            }
+            if (req.etag != null) {
+                conn.setRequestProperty("If-None-Match", req.etag);
+            }
+            if (req.delta) {
+                conn.setRequestProperty("A-IM", DELTA_IM); // a patch from etag, if the server has one
+            }
+            if (req.resumeFrom != 0) {
+                conn.setRequestProperty("Range", "bytes=" + req.resumeFrom + "-");
+                conn.setRequestProperty("If-Range", req.resumeEtag);
+            }
+            conn.connect();
+            return new Response() {
+                @Override
+                int status() throws IOException {
+                    return conn.getResponseCode();
+                }
+
+                @Override
+                String message() throws IOException {
+                    return conn.getResponseMessage();
+                }
+
+                @Override
+                String header(String name) {
+                    return conn.getHeaderField(name);
+                }
+
+                @Override
+                InputStream body() throws IOException {
+                    return conn.getInputStream();
+                }
+
+                @Override
+                public void close() {
+                    conn.disconnect();
+                }
+            };
+        }
+
+        @Override
+        public String describe() {
+            return url.toString();
+        }
+    }
+
+    /**
+     * A local file or content URI. The ETag is derived from the size and
+     * modification time (if known), so unchanged files aren't re-decoded.
+     */
+    final class Document implements WindFieldSource {
+        private final Context context;
+        private final Uri uri;
+
+        Document(Context context, Uri uri) {
+            this.context = context.getApplicationContext();
+            this.uri = uri;
+        }
+
+        @Override
+        public Response fetch(Request req) throws Exception {
+            final String etag = etag();
+            if (etag != null && etag.equals(req.etag)) {
+                return new Fixed(304, etag, null, null);
+            }
+            final InputStream is = "file".equals(uri.getScheme())
+                    ? new FileInputStream(uri.getPath())
+                    : context.getContentResolver().openInputStream(uri);
+            if (is == null) {
+                throw new IOException("failed to open " + uri);
+            }
+            if (etag != null && req.resumeFrom != 0 && etag.equals(req.resumeEtag)) {
+                long skipped = 0;
+                while (skipped < req.resumeFrom) {
+                    final long n = is.skip(req.resumeFrom - skipped);
+                    if (n <= 0) {
+                        break;
+                    }
+                    skipped += n;
+                }
+                if (skipped == req.resumeFrom) {
+                    final Map<String, String> headers = new HashMap<>();
+                    headers.put("Content-Range", "bytes " + req.resumeFrom + "-*/*");
+                    return new Fixed(206, etag, headers, is);
+                }
+                is.close();
+                return new Fixed(416, null, null, null);
+            }
+            return new Fixed(200, etag, null, is);
+        }
+
+        private String etag() {
+            long size = -1, modified = -1;
+            if ("file".equals(uri.getScheme())) {
+                final File file = new File(uri.getPath());
+                if (file.isFile()) {
+                    size = file.length();
+                    modified = file.lastModified();
+                }
+            } else {
+                try (final Cursor c = context.getContentResolver().query(uri, null, null, null, null)) {
+                    if (c != null && c.moveToFirst()) {
+                        final int sizeIdx = c.getColumnIndex(OpenableColumns.SIZE);
+                        final int modifiedIdx = c.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                        if (sizeIdx != -1 && !c.isNull(sizeIdx)) {
+                            size = c.getLong(sizeIdx);
+                        }
+                        if (modifiedIdx != -1 && !c.isNull(modifiedIdx)) {
+                            modified = c.getLong(modifiedIdx);
+                        }
+                    }
+                } catch (RuntimeException ex) {
+                    return null; // e.g., no permission to query it
+                }
+            }
+            return size > 0 && modified > 0 ? "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"" : null;
+        }
+
+        @Override
+        public String describe() {
+            return uri.toString();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+// SPDX-FileCopyrightText: 2026 Patrick Gaskin
+// SPDX-License-Identifier: AGPL-3.0-or-later
+package net.pgaskin.windy;
+
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A bounded log of recent wind field update attempts, for figuring out why
+ * updates fail or retry on a device (shown in the developer settings).
+ */
+final class WindFieldUpdateLog {
+    private static final String KEY = "update_log";
+    private static final int MAX_RECORDS = 24;
+
+    private WindFieldUpdateLog() {
+    }
+
+    static final class Record {
+        long time; // unix ms
+        String trigger;
+        String network; // transports, or "default" if the system picked it
+        boolean vpnWorkaround; // ignored the job's network since it couldn't resolve the host
+        int status = -1;
+        long bytes = -1; // of the response body
+        long ttfbMs = -1; // until the response headers
+        long downloadMs = -1; // waiting for the body
+        long decodeMs = -1; // decoding (while downloading) and installing
+        int seq = -1; // of the installed field, if it changed
+        boolean pickedUp; // whether a renderer uploaded seq
+        String error; // including ones from mirrors which were failed over from
+        String mirror; // the last one tried, if not a specific source
+        int filter = -1; // the api variant, if applicable
+
+        private String encode() {
+            return time + "\t" + clean(trigger) + "\t" + clean(network) + "\t" + (vpnWorkaround ? 1 : 0)
+                    + "\t" + status + "\t" + bytes + "\t" + ttfbMs + "\t" + downloadMs + "\t" + decodeMs
+                    + "\t" + seq + "\t" + (pickedUp ? 1 : 0) + "\t" + clean(error) + "\t" + clean(mirror) + "\t" + filter;
+        }
+
+        private static Record decode(String line) {
+            final String[] f = line.split("\t", -1);
+            if (f.length != 14) {
+                return null;
+            }
+            try {
+                final Record r = new Record();
+                r.time = Long.parseLong(f[0]);
+                r.trigger = f[1].isEmpty() ? null : f[1];
+                r.network = f[2].isEmpty() ? null : f[2];
+                r.vpnWorkaround = f[3].equals("1");
+                r.status = Integer.parseInt(f[4]);
+                r.bytes = Long.parseLong(f[5]);
+                r.ttfbMs = Long.parseLong(f[6]);
+                r.downloadMs = Long.parseLong(f[7]);
+                r.decodeMs = Long.parseLong(f[8]);
+                r.seq = Integer.parseInt(f[9]);
+                r.pickedUp = f[10].equals("1");
+                r.error = f[11].isEmpty() ? null : f[11];
+                r.mirror = f[12].isEmpty() ? null : f[12];
+                r.filter = Integer.parseInt(f[13]);
+                return r;
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        private static String clean(String s) {
+            return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ');
+        }
+
+        /** A single human-readable line. */
+        String format() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US).format(new Date(time)));
+            sb.append(' ').append(trigger);
+            sb.append(' ').append(network != null ? network : "?");
+            if (mirror != null) {
+                final String host = Uri.parse(mirror).getHost();
+                sb.append(' ').append(host != null ? host : mirror);
+            }
+            if (filter != -1) {
+                sb.append(" filter=").append(filter);
+            }
+            if (vpnWorkaround) {
+                sb.append(" (vpn workaround)");
+            }
+            if (status != -1) {
+                sb.append(" http ").append(status);
+            }
+            if (bytes != -1) {
+                sb.append(' ').append(bytes / 1000).append("kB");
+            }
+            if (ttfbMs != -1) {
+                sb.append(" ttfb ").append(ttfbMs).append("ms");
+            }
+            if (downloadMs != -1) {
+                sb.append(" dl ").append(downloadMs).append("ms");
+            }
+            if (decodeMs != -1) {
+                sb.append(" decode ").append(decodeMs).append("ms");
+            }
+            if (seq != -1) {
+                sb.append(pickedUp ? " shown" : " not shown");
+            }
+            if (error != null) {
+                sb.append(": ").append(error);
+            }
+            return sb.toString();
+        }
+    }
+
+    /** Records, newest first. */
+    static synchronized List<Record> records(SharedPreferences prefs) {
+        final List<Record> records = new ArrayList<>();
+        final String log = prefs.getString(KEY, "");
+        for (final String line : log.split("\n")) {
+            final Record r = line.isEmpty() ? null : Record.decode(line);
+            if (r != null) {
+                records.add(r);
+            }
+        }
+        return records;
+    }
+
+    static synchronized void append(SharedPreferences prefs, Record record) {
+        final List<Record> records = records(prefs);
+        records.add(0, record);
+        save(prefs, records);
+    }
+
+    /**
+     * Marks the newest record as picked up by a renderer if it installed the
+     * seq (older ones may be from another process, where the seq differs).
+     */
+    static synchronized void markPickedUp(SharedPreferences prefs, int seq) {
+        final List<Record> records = records(prefs);
+        if (!records.isEmpty() && records.get(0).seq == seq && !records.get(0).pickedUp) {
+            records.get(0).pickedUp = true;
+            save(prefs, records);
+        }
+    }
+
+    /** Removes all records, e.g., to start over after changing the URL. */
+    static synchronized void clear(SharedPreferences prefs) {
+        prefs.edit().remove(KEY).apply();
+    }
+
+    private static void save(SharedPreferences prefs, List<Record> records) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < records.size() && i < MAX_RECORDS; i++) {
+            sb.append(records.get(i).encode()).append('\n');
+        }
+        prefs.edit().putString(KEY, sb.toString()).apply();
+    }
+
+    /** Counts the bytes read from a stream and the time spent waiting for them. */
+    static final class MeteredInputStream extends FilterInputStream {
+        long bytes;
+        long waitNanos;
+
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final long start = System.nanoTime();
+            final int b = super.read();
+            waitNanos += System.nanoTime() - start;
+            if (b != -1) {
+                bytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final long start = System.nanoTime();
+            final int n = super.read(b, off, len);
+            waitNanos += System.nanoTime() - start;
+            if (n > 0) {
+                bytes += n;
+            }
+            return n;
+        }
+    }
+}
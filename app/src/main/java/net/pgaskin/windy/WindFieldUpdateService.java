@@ -2,6 +2,7 @@
 // SPDX-License-Identifier: AGPL-3.0-or-later
 package net.pgaskin.windy;
 
+import android.app.ActivityManager;
 import android.app.job.JobInfo;
 import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
@@ -12,19 +13,35 @@ import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.Network;
 import android.net.NetworkCapabilities;
+import android.net.Uri;
 import android.os.Build;
 import android.util.Log;
 
 import java.net.URL;
 import java.net.UnknownHostException;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
 
 public class WindFieldUpdateService extends JobService {
     private static final String TAG = "WindFieldUpdateService";
 
     private static final int JOB_ID_STARTUP = 72351003;
     private static final int JOB_ID_PERIODIC = 72351004;
+    private static final int JOB_ID_CYCLE = 72351006;
+
+    // GFS cycles are every 6h, and the api usually has one ~3.5-5h after its
+    // analysis time
+    private static final long CYCLE_INTERVAL = 6 * 60 * 60 * 1000L;
+    private static final long CYCLE_PUBLISH_DELAY = 3 * 60 * 60 * 1000L + 30 * 60 * 1000L;
+    private static final long CYCLE_PUBLISH_SLACK = 90 * 60 * 1000L;
+    private static final long CYCLE_RETRY = 30 * 60 * 1000L;
+
+    // see select_filter in api/src/server.rs
+    private static final int FILTER_STANDARD = 1;
+    private static final int FILTER_SMALL = 2; // half the resolution
+    private static final int SLOW_LINK_KBPS = 1000;
+    private static final long DEFAULT_FIELD_SIZE = 5 * 120 * 1000; // bundle with the default 5 forecast hours
 
     @Override
     public boolean onStartJob(JobParameters params) {
@@ -44,6 +61,7 @@ public class WindFieldUpdateService extends JobService {
                 }
                 update(this, net, "job:" + why);
                 this.jobFinished(params, false);
+                schedulePeriodic(this); // for the next cycle (after finishing, since it'd stop this job)
             } catch (Exception ex) {
                 Log.e(TAG, "failed to check for wind field updates, requesting job reschedule: " + ex);
                 this.jobFinished(params, true);
@@ -54,13 +72,73 @@ public class WindFieldUpdateService extends JobService {
 
     /** Fetches the wind field, updating the cache if it changed, blocking. */
     public static void update(Context context, Network net, String why) throws Exception {
-        final URL url = new URL(Prefs.dataUrl(context));
-        if (!"https".equals(url.getProtocol())) {
-            throw new Exception("wind field url must be https");
+        final WindFieldUpdateLog.Record rec = new WindFieldUpdateLog.Record();
+        rec.time = System.currentTimeMillis();
+        rec.trigger = why;
+        final int seq = WindField.currentSeq();
+        try {
+            fetchMirrors(context, net, why, rec);
+        } catch (Exception ex) {
+            rec.error = (rec.error != null ? rec.error + "; " : "") + ex;
+            throw ex;
+        } finally {
+            if (WindField.currentSeq() != seq) {
+                rec.seq = WindField.currentSeq();
+                rec.pickedUp = lastUploadedSeq == rec.seq; // if it was before this is logged
+            }
+            WindFieldUpdateLog.append(getPreferences(context), rec);
+        }
+    }
+
+    /**
+     * Tries each mirror in order of preference (see {@link WindFieldMirrors}),
+     * failing over to the next one immediately.
+     */
+    private static void fetchMirrors(Context context, Network net, String why, WindFieldUpdateLog.Record rec) throws Exception {
+        final SharedPreferences prefs = getPreferences(context);
+        final List<String> urls = WindFieldMirrors.order(prefs, Prefs.dataUrls(context), prefs.getString("etag", null), prefs.getString("cycle", null));
+        Exception err = null;
+        for (final String url : urls) {
+            if (err != null) {
+                rec.error = (rec.error != null ? rec.error + "; " : "") + err; // for the log, even if a later one works
+                rec.vpnWorkaround = false;
+                rec.status = rec.filter = -1;
+                rec.ttfbMs = rec.bytes = rec.downloadMs = rec.decodeMs = -1;
+            }
+            rec.mirror = url;
+            try {
+                fetch(context, source(context, url, net, rec), why, rec);
+            } catch (Exception ex) {
+                Log.w(TAG, "failed to update wind field from " + url + ": " + ex);
+                WindFieldMirrors.failure(prefs, url);
+                err = ex;
+                continue;
+            }
+            WindFieldMirrors.success(prefs, url, rec.ttfbMs, prefs.getString("etag", null), prefs.getString("cycle", null));
+            return;
+        }
+        throw err;
+    }
+
+    /**
+     * Gets the source for a URL, using the network if possible, and choosing
+     * the variant for it (see {@link #chooseFilter}).
+     */
+    private static WindFieldSource source(Context context, String spec, Network net, WindFieldUpdateLog.Record rec) throws Exception {
+        if (!"https".equalsIgnoreCase(Uri.parse(spec).getScheme())) {
+            final WindFieldSource src = WindFieldSource.forUrl(context, spec, null);
+            Log.i(TAG, "updating wind field from " + src.describe());
+            rec.network = "local";
+            return src;
         }
 
+        final ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
+        final NetworkCapabilities cap = cm.getNetworkCapabilities(net != null ? net : cm.getActiveNetwork());
+        rec.network = describeNetwork(cap);
+        final boolean variants = String.valueOf(FILTER_STANDARD).equals(Uri.parse(spec).getQueryParameter("filter")); // custom URLs using another one are left as-is
+        rec.filter = variants ? chooseFilter(context, cap) : -1;
+        final URL url = new URL(variants ? withFilter(spec, rec.filter) : spec);
         if (net != null) {
-            final NetworkCapabilities cap = context.getSystemService(ConnectivityManager.class).getNetworkCapabilities(net);
             Log.i(TAG, "updating wind field from " + url + " using network " + net + " with capabilities " + cap);
             if (cap != null && !cap.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)) {
                 Log.i(TAG, "network for job is a VPN, seeing if we need to work around connectivity bugs");
@@ -68,48 +146,279 @@ public class WindFieldUpdateService extends JobService {
                     net.getAllByName(url.getHost());
                     Log.d(TAG, "nope, everything works fine");
                 } catch (UnknownHostException ex) {
-                    net = null;
+                    rec.vpnWorkaround = true;
                     Log.w(TAG, "WORKAROUND: no connectivity on VPN (" + ex + "), not explicitly using network (will let the system decide)...");
+                    return new WindFieldSource.Https(url, null);
                 }
             }
         } else {
             Log.i(TAG, "updating wind field from " + url);
         }
+        return new WindFieldSource.Https(url, net);
+    }
 
-        final HttpsURLConnection conn = (HttpsURLConnection) (net != null ? net.openConnection(url) : url.openConnection());
-        conn.setRequestProperty("User-Agent", userAgent(context, why));
+    /**
+     * Picks the variant of the api's filtered wind field (?filter=N) to
+     * download: the half-resolution one on metered, roaming, or slow links
+     * and low-RAM devices, and the standard one otherwise.
+     */
+    private static int chooseFilter(Context context, NetworkCapabilities cap) {
+        if (context.getSystemService(ActivityManager.class).isLowRamDevice()) {
+            return FILTER_SMALL;
+        }
+        if (cap == null) {
+            return FILTER_STANDARD;
+        }
+        if (!cap.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED) || !cap.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_ROAMING)) {
+            return FILTER_SMALL;
+        }
+        final int kbps = cap.getLinkDownstreamBandwidthKbps();
+        if (kbps > 0 && kbps < SLOW_LINK_KBPS) {
+            return FILTER_SMALL;
+        }
+        return FILTER_STANDARD;
+    }
 
-        String etag = getPreferences(context).getString("etag", null);
-        if (etag != null) {
-            conn.setRequestProperty("If-None-Match", etag);
+    /** Sets the filter of an api URL. */
+    private static String withFilter(String url, int filter) {
+        final Uri uri = Uri.parse(url);
+        final Uri.Builder builder = uri.buildUpon().clearQuery();
+        for (final String name : uri.getQueryParameterNames()) {
+            for (final String value : uri.getQueryParameters(name)) {
+                builder.appendQueryParameter(name, name.equals("filter") ? String.valueOf(filter) : value);
+            }
         }
+        return builder.build().toString();
+    }
 
-        conn.connect();
+    private static void fetch(Context context, WindFieldSource src, String why, WindFieldUpdateLog.Record rec) throws Exception {
+        final String cachedEtag = getPreferences(context).getString("etag", null);
+        String etag = cachedEtag;
+        long size = -1; // of the complete field, if downloaded
+        long[] times = null;
+        WindFieldSource.Response res = null;
+        try {
+            for (boolean delta = cachedEtag != null; ; delta = false) {
+                // resume an interrupted download if it's still the current version
+                final String partialEtag = getPreferences(context).getString("partial_etag", null);
+                final long partial = partialEtag != null ? WindField.partialCacheLength(context) : 0;
 
-        final int status = conn.getResponseCode();
-        if (status != 200 && status != 304) {
-            throw new Exception("response status " + status + " (" + conn.getResponseMessage() + ")");
+                final WindFieldSource.Request req = new WindFieldSource.Request();
+                req.userAgent = userAgent(context, why);
+                req.etag = cachedEtag;
+                req.delta = delta;
+                if (partial != 0) {
+                    req.resumeFrom = partial;
+                    req.resumeEtag = partialEtag;
+                }
+
+                if (res != null) {
+                    res.close();
+                }
+                final long start = System.nanoTime();
+                res = src.fetch(req);
+
+                final int status = res.status();
+                rec.status = status;
+                rec.ttfbMs = (System.nanoTime() - start) / 1000000;
+                rec.bytes = rec.downloadMs = rec.decodeMs = -1; // if retrying
+                if (status != 200 && status != 304 && !(delta && status == 226) && !(partial != 0 && status == 206)) {
+                    if (status == 416) {
+                        Log.w(TAG, "partial wind field download can't be resumed, discarding it");
+                        discardPartial(context);
+                    }
+                    throw new Exception("response status " + status + " (" + res.message() + ")");
+                }
+                if (status == 304 || status == 226) {
+                    if (partial != 0) {
+                        Log.i(TAG, "discarding obsolete partial wind field download");
+                    }
+                    discardPartial(context);
+                }
+                if (status != 304) {
+                    times = parseForecastTimes(res.header("X-GFS-Forecast-Times"));
+                }
+                if (status == 226) {
+                    final String base = res.header("Delta-Base");
+                    final String im = res.header("IM");
+                    if (!WindFieldSource.DELTA_IM.equals(im) || !cachedEtag.equals(base) || !patch(context, res, times, rec)) {
+                        Log.w(TAG, "can't apply wind field delta im=" + im + " base=" + base + ", doing a full download");
+                        continue;
+                    }
+                    etag = res.header("ETag");
+                    Log.i(TAG, "patched wind field etag=" + (etag != null ? etag : "(null)"));
+                }
+                if (status == 206) {
+                    final String range = res.header("Content-Range");
+                    etag = res.header("ETag");
+                    if (range == null || !range.startsWith("bytes " + partial + "-") || !partialEtag.equals(etag)) {
+                        Log.w(TAG, "unexpected wind field range " + range + " etag=" + etag + ", doing a full download");
+                        discardPartial(context);
+                        continue;
+                    }
+                    Log.i(TAG, "resuming updated wind field etag=" + etag + " from " + partial + " bytes");
+                    updateCache(context, res, times, partial, rec);
+                    discardPartial(context);
+                    size = partial + rec.bytes;
+                }
+                if (status == 200) {
+                    etag = res.header("ETag");
+                    Log.i(TAG, "processing updated wind field etag=" + (etag != null ? etag : "(null)"));
+                    if (etag != null && !etag.startsWith("W/")) {
+                        getPreferences(context).edit().putString("partial_etag", etag).commit(); // before anything is written
+                    } else {
+                        getPreferences(context).edit().remove("partial_etag").commit();
+                    }
+                    updateCache(context, res, times, 0, rec);
+                    discardPartial(context);
+                    size = rec.bytes;
+                }
+                break;
+            }
+            if (etag != null) {
+                getPreferences(context).edit().putString("etag", etag).apply();
+            } else {
+                Log.w(TAG, "no etag in wind field response, next update may re-download unnecessarily");
+                getPreferences(context).edit().remove("etag").apply();
+            }
+            if (size > 0 && rec.filter > 0) {
+                getPreferences(context).edit().putLong("size_filter_" + rec.filter, size).apply(); // for the job's network estimate
+            }
+            if (times != null) {
+                getPreferences(context).edit().putString("forecast_times", formatForecastTimes(times)).apply();
+            } else if (res.status() != 304) {
+                getPreferences(context).edit().remove("forecast_times").apply();
+            }
+            final String source = res.header("X-GFS-Source");
+            Log.i(TAG, "wind field source is " + (source != null ? source : "(null)"));
+            final String cycle = res.header("X-GFS-Cycle");
+            Log.i(TAG, "wind field cycle is " + (cycle != null ? cycle : "(null)"));
+
+            getPreferences(context).edit()
+                    .putLong("last_updated", System.currentTimeMillis())
+                    .putString("source", source) // removes it if null
+                    .putString("cycle", cycle) // removes it if null
+                    .apply();
+        } finally {
+            if (res != null) {
+                res.close();
+            }
         }
-        if (status == 200) {
-            etag = conn.getHeaderField("ETag");
-            Log.i(TAG, "processing updated wind field etag=" + (etag != null ? etag : "(null)"));
-            WindField.updateCache(context, conn.getInputStream());
+
+        Log.i(TAG, "successfully checked for wind field updates");
+    }
+
+    private static void updateCache(Context context, WindFieldSource.Response res, long[] times, long resumeFrom, WindFieldUpdateLog.Record rec) throws Exception {
+        final WindFieldUpdateLog.MeteredInputStream body = new WindFieldUpdateLog.MeteredInputStream(res.body());
+        final long start = System.nanoTime();
+        try {
+            WindField.updateCache(context, body, times, resumeFrom);
+        } finally {
+            meter(rec, body, start);
         }
-        if (etag != null) {
-            getPreferences(context).edit().putString("etag", etag).apply();
-        } else {
-            Log.w(TAG, "no etag in wind field response, next update may re-download unnecessarily");
-            getPreferences(context).edit().remove("etag").apply();
+    }
+
+    private static boolean patch(Context context, WindFieldSource.Response res, long[] times, WindFieldUpdateLog.Record rec) throws Exception {
+        final WindFieldUpdateLog.MeteredInputStream body = new WindFieldUpdateLog.MeteredInputStream(res.body());
+        final long start = System.nanoTime();
+        try {
+            return WindField.patchCache(context, body, times);
+        } finally {
+            meter(rec, body, start);
         }
-        final String source = conn.getHeaderField("X-GFS-Source");
-        Log.i(TAG, "wind field source is " + (source != null ? source : "(null)"));
+    }
 
-        getPreferences(context).edit()
-                .putLong("last_updated", System.currentTimeMillis())
-                .putString("source", source) // removes it if null
-                .apply();
+    /** Splits the time spent in the cache update into waiting for the body and decoding it. */
+    private static void meter(WindFieldUpdateLog.Record rec, WindFieldUpdateLog.MeteredInputStream body, long start) {
+        final long total = System.nanoTime() - start;
+        rec.bytes = body.bytes;
+        rec.downloadMs = body.waitNanos / 1000000;
+        rec.decodeMs = Math.max(total - body.waitNanos, 0) / 1000000;
+    }
 
-        Log.i(TAG, "successfully checked for wind field updates");
+    private static String describeNetwork(NetworkCapabilities cap) {
+        if (cap == null) {
+            return "none";
+        }
+        final StringBuilder sb = new StringBuilder();
+        if (cap.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            sb.append("wifi+");
+        }
+        if (cap.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            sb.append("cellular+");
+        }
+        if (cap.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            sb.append("ethernet+");
+        }
+        if (cap.hasTransport(NetworkCapabilities.TRANSPORT_VPN)) {
+            sb.append("vpn+");
+        }
+        if (sb.length() == 0) {
+            return "other";
+        }
+        sb.setLength(sb.length() - 1);
+        if (!cap.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) {
+            sb.append(" (metered)");
+        }
+        return sb.toString();
+    }
+
+    /** Called by renderers after uploading a wind field, for the update log. */
+    static void onWindFieldUploaded(Context context, int seq) {
+        if (lastUploadedSeq == seq) {
+            return;
+        }
+        lastUploadedSeq = seq;
+        WindFieldUpdateLog.markPickedUp(getPreferences(context), seq);
+    }
+
+    private static volatile int lastUploadedSeq = -1;
+
+    /** The update log, newest first. */
+    static List<WindFieldUpdateLog.Record> updateLog(Context context) {
+        return WindFieldUpdateLog.records(getPreferences(context));
+    }
+
+    static void clearUpdateLog(Context context) {
+        WindFieldUpdateLog.clear(getPreferences(context));
+    }
+
+    private static void discardPartial(Context context) {
+        getPreferences(context).edit().remove("partial_etag").apply();
+        WindField.discardPartialCache(context);
+    }
+
+    /** Parses comma-separated unix seconds into unix ms, returning null if invalid. */
+    private static long[] parseForecastTimes(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        final String[] parts = value.split(",");
+        final long[] times = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                times[i] = Long.parseLong(parts[i].trim()) * 1000;
+            } catch (NumberFormatException ex) {
+                Log.w(TAG, "invalid wind field forecast times " + value);
+                return null;
+            }
+            if (i != 0 && times[i] <= times[i - 1]) {
+                Log.w(TAG, "wind field forecast times " + value + " aren't ascending");
+                return null;
+            }
+        }
+        return times;
+    }
+
+    private static String formatForecastTimes(long[] times) {
+        final StringBuilder sb = new StringBuilder();
+        for (final long time : times) {
+            if (sb.length() != 0) {
+                sb.append(',');
+            }
+            sb.append(time / 1000);
+        }
+        return sb.toString();
     }
 
     private static String userAgent(Context context, String why) {
@@ -161,8 +470,13 @@ public class WindFieldUpdateService extends JobService {
         return getPreferences(context).getString("source", null);
     }
 
+    /** The forecast times (unix ms) of the cached wind field, or null if unknown. */
+    static long[] lastForecastTimes(Context context) {
+        return parseForecastTimes(getPreferences(context).getString("forecast_times", null));
+    }
+
     public static void clearEtag(Context context) {
-        getPreferences(context).edit().remove("etag").remove("last_updated").remove("source").apply();
+        getPreferences(context).edit().remove("etag").remove("last_updated").remove("source").remove("cycle").remove("forecast_times").remove("partial_etag").apply();
     }
 
     @Override
@@ -180,6 +494,8 @@ public class WindFieldUpdateService extends JobService {
                 return "periodic";
             case JOB_ID_STARTUP:
                 return "startup";
+            case JOB_ID_CYCLE:
+                return "cycle";
             default:
                 return null;
         }
@@ -200,20 +516,91 @@ public class WindFieldUpdateService extends JobService {
             return false;
         }
         getPreferences(context).edit().putLong("last_expedited_update", System.currentTimeMillis()).apply();
-        return schedule(context, JOB_ID_STARTUP);
+        return schedule(context, JOB_ID_STARTUP, 0);
     }
 
+    /**
+     * Schedules automatic updates. If the interval is at least one GFS cycle
+     * and the current cycle is known, this is a one-shot job for just after
+     * the next one should be available (which is re-scheduled after each
+     * update), otherwise it's a periodic job.
+     */
     public static boolean schedulePeriodic(Context context) {
+        final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
         if (Prefs.dataConsentPending(context) || Prefs.dataInterval(context) <= 0) {
             Log.i(TAG, "automatic wind field updates are disabled, canceling periodic update job");
-            context.getSystemService(JobScheduler.class).cancel(JOB_ID_PERIODIC);
+            scheduler.cancel(JOB_ID_PERIODIC);
+            scheduler.cancel(JOB_ID_CYCLE);
             return false;
         }
-        return schedule(context, JOB_ID_PERIODIC);
+        final long next = nextCycleCheck(context, Prefs.dataInterval(context) * 1000);
+        if (next < 0) {
+            scheduler.cancel(JOB_ID_CYCLE);
+            return schedule(context, JOB_ID_PERIODIC, 0);
+        }
+        scheduler.cancel(JOB_ID_PERIODIC);
+        return schedule(context, JOB_ID_CYCLE, Math.max(next - System.currentTimeMillis(), 0));
     }
 
-    private static boolean schedule(Context context, int jobID) {
-        Log.i(TAG, "scheduling wind field update job (type: " + describeJob(jobID) + ")");
+    /**
+     * When to check for the next GFS cycle (unix ms), or -1 to poll
+     * periodically instead.
+     */
+    private static long nextCycleCheck(Context context, long interval) {
+        final long cycle = parseCycle(getPreferences(context).getString("cycle", null));
+        if (cycle < 0 || interval < CYCLE_INTERVAL) {
+            return -1;
+        }
+        final long now = System.currentTimeMillis();
+        final long publish = cycle + Math.max(interval / CYCLE_INTERVAL, 1) * CYCLE_INTERVAL + CYCLE_PUBLISH_DELAY; // skip cycles for longer intervals
+        if (now < publish) {
+            return publish;
+        }
+        final long retry = now < publish + CYCLE_PUBLISH_SLACK
+                ? now + CYCLE_RETRY // it's a bit late
+                : now + interval; // the api is probably behind, so don't keep waking up for it
+
+        // keep the pending retry if this is just re-scheduling it (e.g., when
+        // the service is created), otherwise it'd be pushed back every time
+        final SharedPreferences prefs = getPreferences(context);
+        final long pending = prefs.getLong("cycle_retry", 0);
+        if (prefs.getLong("cycle_retry_for", -1) == cycle && pending > now && pending <= retry) {
+            return pending;
+        }
+        prefs.edit().putLong("cycle_retry", retry).putLong("cycle_retry_for", cycle).apply();
+        return retry;
+    }
+
+    /** Parses the X-GFS-Cycle (YYYYMMDD.HH) into unix ms, returning -1 if invalid. */
+    private static long parseCycle(String value) {
+        if (value == null || value.length() != 11 || value.charAt(8) != '.') {
+            return -1;
+        }
+        try {
+            return LocalDateTime.of(
+                    Integer.parseInt(value.substring(0, 4)),
+                    Integer.parseInt(value.substring(4, 6)),
+                    Integer.parseInt(value.substring(6, 8)),
+                    Integer.parseInt(value.substring(9, 11)),
+                    0
+            ).toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (RuntimeException ex) {
+            Log.w(TAG, "invalid gfs cycle " + value);
+            return -1;
+        }
+    }
+
+    /**
+     * The last downloaded size of the variant which would be used on an
+     * unmetered network, as an upper bound on what an update will download.
+     */
+    private static long estimatedFieldSize(Context context) {
+        final int filter = context.getSystemService(ActivityManager.class).isLowRamDevice() ? FILTER_SMALL : FILTER_STANDARD;
+        return getPreferences(context).getLong("size_filter_" + filter, DEFAULT_FIELD_SIZE);
+    }
+
+    private static boolean schedule(Context context, int jobID, long delay) {
+        Log.i(TAG, "scheduling wind field update job (type: " + describeJob(jobID) + (delay != 0 ? ", in " + delay / 60000 + "min" : "") + ")");
         try {
             final JobInfo.Builder builder = new JobInfo.Builder(jobID, new ComponentName(context, WindFieldUpdateService.class));
             switch (jobID) {
@@ -227,12 +614,16 @@ public class WindFieldUpdateService extends JobService {
                         builder.setExpedited(true);
                     }
                     break;
+                case JOB_ID_CYCLE:
+                    builder.setMinimumLatency(delay);
+                    builder.setRequiresBatteryNotLow(true);
+                    break;
                 default:
                     throw new IllegalArgumentException("Unknown jobID");
             }
             // NOT_ROAMING still excludes roaming connections
             builder.setRequiredNetworkType(Prefs.dataMetered(context) ? JobInfo.NETWORK_TYPE_NOT_ROAMING : JobInfo.NETWORK_TYPE_UNMETERED);
-            builder.setEstimatedNetworkBytes(256 * 1000, 0);
+            builder.setEstimatedNetworkBytes(estimatedFieldSize(context), 0);
             builder.setBackoffCriteria(BuildConfig.WIND_FIELD_UPDATE_INTERVAL_MINIMUM * 60 * 1000, JobInfo.BACKOFF_POLICY_EXPONENTIAL);
 
             final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
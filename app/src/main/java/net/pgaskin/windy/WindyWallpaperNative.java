@@ -4,11 +4,15 @@ package net.pgaskin.windy;
 
 import android.view.Surface;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+
 /**
  * Native renderer bindings.
  *
  * Not thread-safe. All methods (including {@link #close()}) must be called from
- * the same thread.
+ * one thread at a time (e.g., a detached renderer may be handed off to another
+ * thread).
  */
 public final class WindyWallpaperNative implements AutoCloseable {
     static {
@@ -24,6 +28,40 @@ public final class WindyWallpaperNative implements AutoCloseable {
         }
     }
 
+    private WindyWallpaperNative(long handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Creates a renderer which renders to a texture instead of a surface, for
+     * reading frames back with {@link #readPixels}.
+     */
+    public static WindyWallpaperNative offscreen(int width, int height, int themeIndex, float dpiScale) {
+        final long handle = nativeCreateOffscreen(width, height, themeIndex, dpiScale);
+        if (handle == 0) {
+            throw new RuntimeException("failed to create native renderer");
+        }
+        return new WindyWallpaperNative(handle);
+    }
+
+    /**
+     * Releases the surface, keeping the device, particles, and trails so it
+     * can be attached to another one with {@link #attach}. Nothing is rendered
+     * until then.
+     */
+    public void detach() {
+        nativeDetach(handle);
+    }
+
+    /**
+     * Attaches a detached renderer to a new surface, resizing it to match.
+     * Returns false if the surface can't be used with it, in which case it
+     * stays detached.
+     */
+    public boolean attach(Surface surface) {
+        return nativeAttach(handle, surface);
+    }
+
     public void resize(int width, int height) {
         nativeResize(handle, width, height);
     }
@@ -36,6 +74,18 @@ public final class WindyWallpaperNative implements AutoCloseable {
         nativeSkip(handle, frames);
     }
 
+    /**
+     * Copies the last frame of an offscreen renderer into a direct buffer as
+     * row-major rgba8 (i.e., {@code Bitmap.Config.ARGB_8888}), returning
+     * false if it isn't offscreen or the buffer is too small.
+     */
+    public boolean readPixels(ByteBuffer dst) {
+        if (!dst.isDirect()) {
+            throw new IllegalArgumentException("pixel buffer must be direct");
+        }
+        return nativeReadPixels(handle, dst);
+    }
+
     /** Clears the trails and respawns the particles. */
     public void restart() {
         nativeRestart(handle);
@@ -49,6 +99,15 @@ public final class WindyWallpaperNative implements AutoCloseable {
         nativeSetUserLocation(handle, lng, lat);
     }
 
+    /**
+     * Switches to a built-in theme without recreating the renderer. The
+     * particles and trails are kept, and the params ease like
+     * {@link #setCustom}.
+     */
+    public void setTheme(int themeIndex) {
+        nativeSetTheme(handle, themeIndex);
+    }
+
     /**
      * Replaces the colors (packed 0xAARRGGBB) and params (the width is in dp),
      * indexed by {@link CustomTheme} {@code COLOR_*} and {@code PARAM_*}.
@@ -62,9 +121,42 @@ public final class WindyWallpaperNative implements AutoCloseable {
         return nativeGpuModel(handle);
     }
 
-    // row-major rgba8888
-    public void setWindField(byte[] rgba, int width, int height) {
-        nativeSetWindField(handle, rgba, width, height);
+    /**
+     * How long it took to compile the pipelines for the renderer in ns, or
+     * zero if they were shared with another renderer.
+     */
+    public long pipelineNanos() {
+        return nativePipelineNanos(handle);
+    }
+
+    /** Whether the pipelines were compiled with data from a saved pipeline cache. */
+    public boolean pipelineCacheLoaded() {
+        return nativePipelineCacheLoaded(handle);
+    }
+
+    /**
+     * Uploads the wind field from a direct buffer (row-major rg88, see
+     * {@code pack_wind_field} in core/src/render.rs), which
+     * is read in place without copying it to the Java heap. If there are
+     * multiple layers, each is a forecast valid at the corresponding time
+     * (unix ms), and the renderer interpolates between them.
+     */
+    public void setWindField(ByteBuffer rg, int width, int height, long[] times) {
+        if (!rg.isDirect()) {
+            throw new IllegalArgumentException("wind field buffer must be direct");
+        }
+        if (times.length == 0) {
+            throw new IllegalArgumentException("wind field must have at least one layer");
+        }
+        nativeSetWindFieldDirect(handle, rg, width, height, times.length, times);
+    }
+
+    /**
+     * Whether the location or size moved outside the part of the wind field
+     * which was uploaded, and it needs to be set again.
+     */
+    public boolean windFieldStale() {
+        return nativeWindFieldStale(handle);
     }
 
     @Override
@@ -75,6 +167,34 @@ public final class WindyWallpaperNative implements AutoCloseable {
         }
     }
 
+    /**
+     * Shows pixels (rgba8, e.g., from {@link #readPixels}) on a surface
+     * without a renderer, returning false if it isn't supported. Unlike a
+     * canvas, a renderer can still be created for the surface afterwards.
+     */
+    public static boolean present(Surface surface, ByteBuffer src, int width, int height) {
+        if (!src.isDirect()) {
+            throw new IllegalArgumentException("pixel buffer must be direct");
+        }
+        return nativePresentPixels(surface, src, width, height);
+    }
+
+    /**
+     * Releases the GPU device kept after {@link #present}, if no renderers are
+     * using it.
+     */
+    public static void releaseGpu() {
+        nativeReleaseGpu();
+    }
+
+    /**
+     * Sets the directory for the pipeline cache, which is used by the GPU
+     * device created next (i.e., when no renderers are open).
+     */
+    public static void setCacheDir(File dir) {
+        nativeSetCacheDir(dir != null ? dir.getAbsolutePath() : null);
+    }
+
     public static int themeColor(int themeIndex, int component) {
         return nativeThemeColor(themeIndex, component); // packed 0xAARRGGBB
     }
@@ -123,15 +243,26 @@ public final class WindyWallpaperNative implements AutoCloseable {
     }
 
     private static native long nativeCreate(Surface surface, int themeIndex, float dpiScale);
+    private static native long nativeCreateOffscreen(int width, int height, int themeIndex, float dpiScale);
+    private static native void nativeDetach(long handle);
+    private static native boolean nativeAttach(long handle, Surface surface);
     private static native void nativeResize(long handle, int width, int height);
     private static native void nativeRender(long handle);
     private static native void nativeSkip(long handle, int frames);
+    private static native boolean nativeReadPixels(long handle, ByteBuffer dst);
     private static native void nativeRestart(long handle);
     private static native void nativeSetOffset(long handle, float offset);
     private static native void nativeSetUserLocation(long handle, float lng, float lat);
+    private static native void nativeSetTheme(long handle, int themeIndex);
     private static native void nativeSetCustom(long handle, int[] colors, float[] params);
-    private static native void nativeSetWindField(long handle, byte[] rgba, int width, int height);
+    private static native void nativeSetWindFieldDirect(long handle, ByteBuffer rg, int width, int height, int layers, long[] times);
+    private static native boolean nativeWindFieldStale(long handle);
     private static native String nativeGpuModel(long handle);
+    private static native long nativePipelineNanos(long handle);
+    private static native boolean nativePipelineCacheLoaded(long handle);
+    private static native void nativeSetCacheDir(String dir);
+    private static native boolean nativePresentPixels(Surface surface, ByteBuffer src, int width, int height);
+    private static native void nativeReleaseGpu();
     private static native void nativeDestroy(long handle);
     private static native int nativeThemeColor(int themeIndex, int component);
     private static native int nativeThemeTint(int themeIndex);
@@ -4,25 +4,165 @@ package net.pgaskin.windy;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.util.Log;
 import android.view.SurfaceHolder;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 public abstract class WindyWallpaperRenderer extends Thread {
     private static final String TAG = "WindyWallpaperRenderer";
 
+    // what changed outside the renderer, for wakeAll
+    static final int WIND_FIELD_CHANGED = 1;
+    static final int LOCATION_CHANGED = 1 << 1;
+    static final int CUSTOM_THEME_CHANGED = 1 << 2;
+    private static final int CHANGED = WIND_FIELD_CHANGED | LOCATION_CHANGED | CUSTOM_THEME_CHANGED;
+
+    // commands for the render thread (the values are in the fields)
+    private static final int CMD_ACTIVE = 1 << 3;
+    private static final int CMD_THEME = 1 << 4;
+    private static final int CMD_SIZE = 1 << 5;
+    private static final int CMD_OFFSET = 1 << 6;
+    private static final int CMD_SETTINGS = 1 << 7;
+    private static final int CMD_RESTART = 1 << 8;
+
     private static final int MIN_PAGES_TO_SWIPE = 4; // matches the original
     private static final int STATIC_FRAMES = 300;
+    private static final long FRAME_STATS_SAVE_INTERVAL = 60 * 1000000000L;
+
+    private static final long DETACHED_GRACE = 2 * 60 * 1000L; // ms
+    private static final int DETACHED_MAX = 2; // e.g., home and lock screen
 
     private static final Set<WindyWallpaperRenderer> renderers = ConcurrentHashMap.newKeySet();
 
-    /** Wakes all renders to check for texture/location updates. */
-    static void wakeAll() {
+    // Renderers are detached from their surface when it's destroyed and kept
+    // for a while, so a new one (e.g., after unlocking) continues the same
+    // simulation instead of starting over with a burst of work to fill in
+    // the trails.
+    private static final List<Detached> detached = new ArrayList<>(); // guarded by itself
+    private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "WindyReaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // The GPU device is kept for a while after presenting a static frame, so
+    // the next one (e.g., after unlocking again) doesn't need to create it.
+    private static ScheduledFuture<?> gpuRelease; // guarded by detached
+
+        /** A detached renderer, and the state needed to continue it. */
+    private static final class Detached {
+        final String name;
+        final WindyWallpaperNative renderer;
+        final int theme;
+        final int windFieldSeq;
+        final boolean windFieldUploaded;
+        final int locationRefreshSeq;
+        final int locationSeq;
+        final int customSeq;
+        final float[] lastLocation;
+        final float easedOffset;
+        ScheduledFuture<?> expiry;
+
+        Detached(WindyWallpaperRenderer r, WindyWallpaperNative renderer) {
+            this.name = r.getName();
+            this.renderer = renderer;
+            this.theme = r.rendererTheme;
+            this.windFieldSeq = r.windFieldSeq;
+            this.windFieldUploaded = r.windFieldUploaded && !r.windFieldOutOfBounds;
+            this.locationRefreshSeq = r.locationRefreshSeq;
+            this.locationSeq = r.locationSeq;
+            this.customSeq = r.customSeq;
+            this.lastLocation = r.lastLocation;
+            this.easedOffset = r.easedOffset;
+        }
+
+        void restore(WindyWallpaperRenderer r) {
+            r.rendererTheme = theme;
+            r.windFieldSeq = windFieldSeq;
+            r.windFieldUploaded = windFieldUploaded;
+            r.locationRefreshSeq = locationRefreshSeq;
+            r.locationSeq = locationSeq;
+            r.customSeq = customSeq;
+            r.lastLocation = lastLocation;
+            r.easedOffset = easedOffset;
+        }
+    }
+
+    /** Destroys the detached renderers, e.g., to free memory. */
+    static void releaseDetached() {
+        final List<Detached> released;
+        synchronized (detached) {
+            released = new ArrayList<>(detached);
+            detached.clear();
+            if (gpuRelease != null) {
+                gpuRelease.cancel(false);
+                gpuRelease = null;
+            }
+        }
+        for (final Detached d : released) {
+            d.expiry.cancel(false);
+            d.renderer.close();
+        }
+        WindyWallpaperNative.releaseGpu();
+    }
+
+    /**
+     * Keeps the GPU device used to present a static frame for a while,
+     * returning whether it was already being kept.
+     */
+    private static boolean keepGpu() {
+        synchronized (detached) {
+            final boolean kept = gpuRelease != null && gpuRelease.cancel(false);
+            gpuRelease = reaper.schedule(WindyWallpaperNative::releaseGpu, DETACHED_GRACE, TimeUnit.MILLISECONDS);
+            return kept;
+        }
+    }
+
+    /** Wakes all renderers to apply a change (one or more of the *_CHANGED flags). */
+    static void wakeAll(int changed) {
+        for (final WindyWallpaperRenderer renderer : renderers) {
+            renderer.post(changed & CHANGED, true);
+        }
+    }
+
+    /** Whether all active renderers have uploaded the wind field with the seq. */
+    static boolean allUploaded(int seq) {
         for (final WindyWallpaperRenderer renderer : renderers) {
-            renderer.wake();
+            if (!renderer.uploaded(seq)) {
+                return false;
+            }
         }
+        return true;
+    }
+
+    /** Summarizes the recent frame timings of the active renderers, for debugging. */
+    static String describeFrameStats() {
+        final StringBuilder sb = new StringBuilder();
+        for (final WindyWallpaperRenderer renderer : renderers) {
+            final FrameStats.Summary summary = renderer.frameStats.summarize();
+            if (summary != null) {
+                if (sb.length() != 0) {
+                    sb.append("\n\n");
+                }
+                sb.append(renderer.getName()).append('\n').append(renderer.describeFrameStats(summary));
+            }
+        }
+        return sb.toString();
     }
 
     /** Restarts all renderers, to see the current settings from a clean slate. */
@@ -34,38 +174,50 @@ public abstract class WindyWallpaperRenderer extends Thread {
 
     private final Context context;
     private final SurfaceHolder holder;
-
+    private final FramePacer pacer;
+    private final FrameStats frameStats = new FrameStats();
+    private long frameStatsSaved;
+
+    // Commands are coalesced into a bitmask, with only the latest value for
+    // each kept, so the render thread (the only consumer) handles a burst
+    // of them (e.g., offsets while swiping) at once, and only wakes up for
+    // the first one.
+    private final AtomicInteger pending = new AtomicInteger(CMD_SETTINGS);
     private volatile boolean running = true;
-    private boolean active;
-    private int themeIndex;
-    private int pendingWidth, pendingHeight;
+    private volatile boolean active;
+    private volatile int themeIndex;
+    private volatile long pendingSize; // width << 32 | height
+    private volatile float targetOffset; // [-1, 1]
+    private volatile boolean easing; // offsets will be picked up by the next frame anyways
+
+    // render thread only
+    private int changes; // *_CHANGED not applied yet
     private boolean resized;
-
-    private float targetOffset; // [-1, 1]
     private float easedOffset;
     private boolean offsetDirty;
 
     private boolean locationFlowPending;
     private float[] lastLocation;
     private int rendererTheme = -1;
-    private int windFieldSeq = -1;
+    private volatile int windFieldSeq = -1;
+    private volatile boolean windFieldUploaded;
+    private boolean windFieldOutOfBounds;
+    private int locationRefreshSeq = -1;
     private int locationSeq = -1;
     private int customSeq = -1;
 
     private volatile boolean staticMode;
-    private volatile boolean settingsDirty;
     private boolean settled;
     private boolean restartPending;
+    private boolean canvasAttached; // a static frame was drawn with a canvas (if it couldn't be presented directly)
 
-    private final SharedPreferences.OnSharedPreferenceChangeListener settingsListener = (prefs, key) -> {
-        settingsDirty = true;
-        wake();
-    };
+    private final SharedPreferences.OnSharedPreferenceChangeListener settingsListener = (prefs, key) -> post(CMD_SETTINGS, true);
 
     protected WindyWallpaperRenderer(String name, Context context, SurfaceHolder holder, int themeIndex, boolean active) {
         super(name);
         this.context = context;
         this.holder = holder;
+        this.pacer = new FramePacer(context);
         this.themeIndex = themeIndex;
         this.active = active;
         this.locationFlowPending = !Location.consentDone(context);
@@ -84,29 +236,30 @@ public abstract class WindyWallpaperRenderer extends Thread {
         return false;
     }
 
-    /** Whether to destroy the renderer while a static frame is showing. */
+    /**
+     * Whether to destroy the renderer while a static frame is showing. If so,
+     * static frames are rendered offscreen, cached, and drawn with a canvas.
+     */
     protected boolean releaseWhenSettled() {
         return true;
     }
 
-    public synchronized void setActive(boolean active) {
+    public void setActive(boolean active) {
         this.active = active;
-        notifyAll();
+        post(CMD_ACTIVE, true);
     }
 
-    public synchronized void setThemeIndex(int themeIndex) {
+    public void setThemeIndex(int themeIndex) {
         this.themeIndex = themeIndex;
-        notifyAll();
+        post(CMD_THEME, true);
     }
 
-    public synchronized void setSize(int width, int height) {
-        pendingWidth = width;
-        pendingHeight = height;
-        resized = true;
-        notifyAll();
+    public void setSize(int width, int height) {
+        pendingSize = (long) width << 32 | (height & 0xFFFFFFFFL);
+        post(CMD_SIZE, true);
     }
 
-    public synchronized void setOffset(float xOffset, float xOffsetStep) {
+    public void setOffset(float xOffset, float xOffsetStep) {
         if (staticMode) {
             return; // no parallax for static mode
         }
@@ -114,31 +267,57 @@ public abstract class WindyWallpaperRenderer extends Thread {
         final int steps = (int) (1.0f / xOffsetStep);
         final float stretch = Math.min(steps / (float) MIN_PAGES_TO_SWIPE, 1.0f);
         targetOffset = Math.max(-1.0f, Math.min(1.0f, (xOffset - 0.5f) * 2.0f * stretch));
-        offsetDirty = true;
-        notifyAll();
+        post(CMD_OFFSET, !easing);
     }
 
-    public synchronized void wake() {
-        notifyAll();
+    private boolean uploaded(int seq) {
+        return !active || (windFieldUploaded && windFieldSeq == seq);
     }
 
-    public synchronized void requestRestart() {
-        restartPending = true;
-        settled = false; // static mode needs a new frame too
-        notifyAll();
+    /** Logs and saves how long a new renderer took to compile its pipelines, if it did. */
+    private void recordPipelineTime(WindyWallpaperNative renderer) {
+        final long nanos = renderer.pipelineNanos();
+        if (nanos != 0) {
+            final boolean cached = renderer.pipelineCacheLoaded();
+            Log.i(TAG, getName() + " compiled pipelines in " + nanos / 1000000L + "ms" + (cached ? " (cached)" : ""));
+            FrameStats.savePipelineTime(context, renderer.gpuModel(), nanos, cached);
+        }
+    }
+
+    /** Describes the frame timings along with the frame pacing jitter. */
+    String describeFrameStats(FrameStats.Summary summary) {
+        final long jitter = pacer.jitter();
+        return summary.format() + (jitter >= 0 ? String.format(Locale.US, "\njitter %.2f ms", jitter / 1e6) : "");
+    }
+
+    FrameStats frameStats() {
+        return frameStats;
+    }
+
+    public void requestRestart() {
+        post(CMD_RESTART, true);
     }
 
     public void shutdown() {
-        synchronized (this) {
-            running = false;
-            notifyAll();
-        }
+        running = false;
+        LockSupport.unpark(this);
         try {
             join();
         } catch (InterruptedException ignored) {
         }
     }
 
+    /**
+     * Queues a command, replacing any pending one of the same kind, and wakes
+     * the render thread if it wasn't already pending.
+     */
+    private void post(int command, boolean wake) {
+        final int prev = pending.getAndUpdate(p -> p | command);
+        if (wake && (prev & command) != command) {
+            LockSupport.unpark(this);
+        }
+    }
+
     @Override
     public void run() {
         final float dpiScale = context.getResources().getDisplayMetrics().density;
@@ -146,108 +325,173 @@ public abstract class WindyWallpaperRenderer extends Thread {
         WindyWallpaperNative renderer = null;
         renderers.add(this);
         prefs.registerOnSharedPreferenceChangeListener(settingsListener);
+        WindyWallpaperNative.setCacheDir(context.createDeviceProtectedStorageContext().getCodeCacheDir()); // cleared when the app is updated
+        if (!Prefs.staticMode(context) || !releaseWhenSettled()) {
+            WindField.preload(context); // start loading it while the device is created
+        }
         try {
             while (running) {
-                final int theme;
-                synchronized (this) {
-                    while (running && !active) {
-                        try {
-                            wait();
-                        } catch (InterruptedException ignored) {
-                        }
-                    }
-                    if (!running) {
-                        break;
-                    }
-                    theme = themeIndex;
-                    settingsDirty = false; // clear before reading to avoid losing changes
+                while (running && !active) {
+                    LockSupport.park(this);
+                }
+                if (!running) {
+                    break;
                 }
 
-                if (staticMode != Prefs.staticMode(context)) {
+                // take them before reading the values to avoid losing changes
+                final int commands = pending.getAndSet(0);
+                changes |= commands & CHANGED;
+                if ((commands & CMD_SIZE) != 0) {
+                    resized = true;
+                }
+                if ((commands & CMD_OFFSET) != 0) {
+                    offsetDirty = true;
+                }
+                if ((commands & CMD_RESTART) != 0) {
+                    restartPending = true;
+                    settled = false; // static mode needs a new frame too
+                }
+                if ((commands & CMD_SETTINGS) != 0 && staticMode != Prefs.staticMode(context)) {
                     staticMode = !staticMode;
                     settled = false;
                 }
+                final int theme = themeIndex;
 
                 if (staticMode && !stale()) {
                     awaitChange();
                     continue;
                 }
 
-                final long frameStart = System.nanoTime();
-
-                final boolean fresh = renderer == null || rendererTheme != theme;
-                if (fresh) {
+                if (staticMode && releaseWhenSettled()) {
                     if (renderer != null) {
-                        renderer.close();
+                        renderer.close(); // nothing else can draw to the surface while it's attached
                         renderer = null;
                     }
+                    drawStaticFrame(theme, dpiScale);
+                    awaitChange();
+                    continue;
+                }
+
+                if (canvasAttached) {
+                    // There's no way to detach the canvas from the surface,
+                    // so the renderer can't use it until it's recreated.
+                    Log.w(TAG, getName() + " surface was drawn with a canvas, not animating until it's recreated");
+                    awaitSettings();
+                    continue;
+                }
+
+                final long frameStart = System.nanoTime();
+
+                boolean fresh = false, attached = false;
+                if (renderer == null) {
+                    renderer = reattach();
+                    attached = renderer != null;
+                    fresh = !attached;
+                }
+                final boolean themeChanged = rendererTheme != theme;
+                if (fresh) {
                     renderer = new WindyWallpaperNative(holder.getSurface(), theme, dpiScale);
-                    renderer.setOffset(staticMode ? 0.0f : easedOffset);
-                    rendererTheme = theme;
                     Prefs.setGpuModel(context, renderer.gpuModel()); // only writes if it changed
+                    recordPipelineTime(renderer);
+                    windFieldUploaded = false; // it starts with a neutral field
+                } else if (themeChanged) {
+                    renderer.setTheme(theme); // much cheaper than re-creating the device and pipelines
+                }
+                if (fresh || attached) {
+                    renderer.setOffset(staticMode ? 0.0f : easedOffset);
+                }
+                if (fresh || attached || themeChanged) {
                     settled = false;
                 }
+                rendererTheme = theme;
 
-                synchronized (this) {
-                    if (resized) {
-                        renderer.resize(pendingWidth, pendingHeight);
-                        resized = false;
-                        settled = false;
-                    }
-                    if (restartPending) {
-                        if (!fresh) {
-                            renderer.restart(); // a new one starts clean anyway
-                        }
-                        restartPending = false;
+                boolean boundsChanged = fresh || attached || themeChanged;
+                if (resized) {
+                    final long size = pendingSize;
+                    renderer.resize((int) (size >> 32), (int) size);
+                    resized = false;
+                    settled = false;
+                    boundsChanged = true;
+                }
+                if (restartPending) {
+                    if (!fresh) {
+                        renderer.restart(); // a new one starts clean anyway
                     }
+                    restartPending = false;
                 }
 
-                applyCustomTheme(renderer, theme, fresh);
+                if (fresh || themeChanged || (changes & CUSTOM_THEME_CHANGED) != 0) {
+                    boundsChanged |= applyCustomTheme(renderer, theme, fresh || themeChanged);
+                }
 
                 // Only refresh the location when the wind texture changes,
                 // since refreshing saves it, which bumps seq and would make a
                 // static frame stale immediately.
-                final boolean windFieldUpdated = windFieldSeq != WindField.currentSeq();
-                if (windFieldUpdated || fresh) {
-                    applyWindField(renderer);
+                final int fieldSeq = WindField.currentSeq();
+                if (fresh || locationFlowPending || (changes & (LOCATION_CHANGED | WIND_FIELD_CHANGED)) != 0) {
+                    if (updateLocation(locationRefreshSeq != fieldSeq || (fresh && lastLocation == null), fresh)) {
+                        renderer.setUserLocation(lastLocation[0], lastLocation[1]);
+                        boundsChanged = true;
+                    }
+                    locationRefreshSeq = fieldSeq;
+                }
+                changes = 0;
+
+                // Only the visible part of the field is uploaded, so it also
+                // needs to be set again when the location or size moves too far.
+                if (boundsChanged && renderer.windFieldStale()) {
+                    windFieldOutOfBounds = true;
+                }
+                if (!windFieldUploaded || windFieldSeq != fieldSeq || windFieldOutOfBounds) {
+                    applyWindField(renderer, staticMode);
                 }
-                applyLocation(renderer, windFieldUpdated || (fresh && lastLocation == null), fresh);
 
                 if (staticMode) {
                     renderer.render(); // render the initial blank frame so it feels more responsive
                     renderer.skip(STATIC_FRAMES);
                     renderer.render();
                     settled = true;
-
-                    final long shown = System.nanoTime();
-                    if (releaseWhenSettled()) {
-                        renderer.close();
-                        renderer = null;
-                    }
-                    Log.i(TAG, getName() + " rendered static frame in " + (shown - frameStart) / 1000000L + "ms"
-                            + " (+" + (System.nanoTime() - shown) / 1000000L + "ms cleanup)");
+                    Log.i(TAG, getName() + " rendered static frame in " + (System.nanoTime() - frameStart) / 1000000L + "ms");
 
                     awaitChange();
                     continue;
                 }
 
+                pacer.frameStarted(frameStart);
+
                 boolean easing = false;
-                synchronized (this) {
-                    if (offsetDirty || Math.abs(targetOffset - easedOffset) > 0.001f) {
-                        if (powerSave()) {
-                            easedOffset = targetOffset;
-                        } else {
-                            easedOffset += (targetOffset - easedOffset) * 0.18f;
-                            easing = Math.abs(targetOffset - easedOffset) > 0.001f;
-                        }
-                        renderer.setOffset(easedOffset);
-                        offsetDirty = easing;
+                final float target = targetOffset;
+                if (offsetDirty || Math.abs(target - easedOffset) > 0.001f) {
+                    if (powerSave()) {
+                        easedOffset = target;
+                    } else {
+                        easedOffset += (target - easedOffset) * 0.18f;
+                        easing = Math.abs(target - easedOffset) > 0.001f;
                     }
+                    renderer.setOffset(easedOffset);
+                    offsetDirty = easing;
                 }
+                this.easing = easing;
 
+                final long renderStart = System.nanoTime();
                 renderer.render();
+                final long renderEnd = System.nanoTime();
 
-                awaitFrame(frameStart, Prefs.limitFps(context, fps(easing)));
+                final long deadline = pacer.next(frameStart, Prefs.limitFps(context, fps(easing)), Prefs.vsyncPacing(context));
+                awaitFrame(deadline, easing);
+                frameStats.record(frameStart, renderEnd - renderStart, renderEnd - frameStart, System.nanoTime() - renderEnd, deadline <= renderEnd);
+
+                if (renderEnd - frameStatsSaved >= FRAME_STATS_SAVE_INTERVAL) {
+                    final FrameStats.Summary summary = frameStats.summarize();
+                    if (summary != null && frameStatsSaved != 0) {
+                        FrameStats.save(context, Prefs.gpuModel(context), summary);
+                    }
+                    frameStatsSaved = renderEnd;
+                }
+            }
+            if (renderer != null) {
+                detach(renderer);
+                renderer = null;
             }
         } catch (Throwable t) {
             Log.e(TAG, getName() + " render loop failed", t);
@@ -260,8 +504,63 @@ public abstract class WindyWallpaperRenderer extends Thread {
         }
     }
 
+    /** Detaches the renderer from the surface and keeps it for a while. */
+    private void detach(WindyWallpaperNative renderer) {
+        renderer.detach();
+        final Detached d = new Detached(this, renderer);
+        final List<Detached> evicted = new ArrayList<>();
+        synchronized (detached) {
+            detached.add(d);
+            while (detached.size() > DETACHED_MAX) {
+                evicted.add(detached.remove(0));
+            }
+            d.expiry = reaper.schedule(() -> {
+                synchronized (detached) {
+                    if (!detached.remove(d)) {
+                        return; // already re-attached
+                    }
+                }
+                Log.i(TAG, d.name + " detached renderer expired");
+                d.renderer.close();
+            }, DETACHED_GRACE, TimeUnit.MILLISECONDS);
+        }
+        for (final Detached e : evicted) {
+            e.expiry.cancel(false);
+            e.renderer.close();
+        }
+        Log.i(TAG, getName() + " detached renderer");
+    }
+
+    /**
+     * Attaches the most recently detached renderer from a thread with the same
+     * name to the surface, restoring its state, or returns null if there
+     * isn't one which can be used.
+     */
+    private WindyWallpaperNative reattach() {
+        Detached d = null;
+        synchronized (detached) {
+            for (int i = detached.size() - 1; i >= 0; i--) {
+                if (detached.get(i).name.equals(getName())) {
+                    d = detached.remove(i);
+                    break;
+                }
+            }
+        }
+        if (d == null) {
+            return null;
+        }
+        d.expiry.cancel(false);
+        if (!d.renderer.attach(holder.getSurface())) {
+            d.renderer.close();
+            return null;
+        }
+        d.restore(this);
+        Log.i(TAG, getName() + " re-attached detached renderer");
+        return d.renderer;
+    }
+
     /** Whether the static-mode frame needs to be updated. */
-    private synchronized boolean stale() {
+    private boolean stale() {
         return !settled || resized
                 || themeIndex != rendererTheme
                 || windFieldSeq != WindField.currentSeq()
@@ -269,36 +568,148 @@ public abstract class WindyWallpaperRenderer extends Thread {
                 || (themeIndex == Themes.CUSTOM && customSeq != CustomTheme.currentSeq());
     }
 
-    /** Sleeps until the static-mode frame needs to be updated. */
-    private synchronized void awaitChange() {
-        if (!running || !active || settingsDirty || stale()) {
+    /** Sleeps until the settings change. */
+    private void awaitSettings() {
+        while (running && active && (pending.get() & CMD_SETTINGS) == 0) {
+            LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Shows a static frame without attaching a renderer to the surface. If
+     * nothing it depends on changed, it's read from the cache, otherwise it's
+     * rendered offscreen, read back, and saved.
+     */
+    private void drawStaticFrame(int theme, float dpiScale) {
+        final long start = System.nanoTime();
+        settled = true; // even on failure, otherwise it would spin until the surface is changed or destroyed
+        resized = false; // the surface frame is read directly
+        final Rect frame = holder.getSurfaceFrame();
+        final int width = frame.width(), height = frame.height();
+        if (width <= 0 || height <= 0) {
             return;
         }
+
+        // read the seqs before the values so a concurrent change makes it stale
+        final int fieldSeq = WindField.currentSeq();
+        final int custom = CustomTheme.currentSeq();
+        updateLocation(locationRefreshSeq != fieldSeq || lastLocation == null, lastLocation == null);
+        locationRefreshSeq = fieldSeq;
+
+        final String key = StaticFrameCache.key(context, theme, lastLocation, width, height, dpiScale);
+        ByteBuffer pixels = restartPending ? null : StaticFrameCache.load(context, key, width, height);
+        final boolean cached = pixels != null;
+        WindyWallpaperNative renderer = null; // kept open until it's presented so the device is reused
+        boolean reused = false; // whether the device kept from the last static frame was used
         try {
-            wait();
-        } catch (InterruptedException ignored) {
+            if (cached) {
+                customSeq = custom;
+                windFieldSeq = fieldSeq;
+                windFieldUploaded = true; // it isn't needed
+            } else {
+                renderer = WindyWallpaperNative.offscreen(width, height, theme, dpiScale);
+                Prefs.setGpuModel(context, renderer.gpuModel()); // only writes if it changed
+                recordPipelineTime(renderer);
+                applyCustomTheme(renderer, theme, true);
+                if (lastLocation != null) {
+                    renderer.setUserLocation(lastLocation[0], lastLocation[1]);
+                }
+                applyWindField(renderer, true);
+                renderer.skip(STATIC_FRAMES);
+                renderer.render();
+                pixels = ByteBuffer.allocateDirect(width * height * 4);
+                if (!renderer.readPixels(pixels)) {
+                    Log.w(TAG, getName() + " failed to read back static frame");
+                    return;
+                }
+            }
+            restartPending = false;
+            rendererTheme = theme;
+
+            if (WindyWallpaperNative.present(holder.getSurface(), pixels, width, height)) {
+                reused = keepGpu();
+            } else {
+                Log.w(TAG, getName() + " failed to present static frame, drawing it with a canvas");
+                drawCanvas(pixels, width, height);
+            }
+        } finally {
+            if (renderer != null) {
+                renderer.close();
+            }
+        }
+
+        final long shown = System.nanoTime();
+        if (!cached) {
+            StaticFrameCache.save(context, key, width, height, pixels);
         }
+        Log.i(TAG, getName() + (cached ? " drew cached static frame in " : " rendered static frame in ") + (shown - start) / 1000000L + "ms"
+                + (reused ? " with the kept device" : "") + " (+" + (System.nanoTime() - shown) / 1000000L + "ms cleanup)");
     }
 
-    private void applyCustomTheme(WindyWallpaperNative renderer, int theme, boolean fresh) {
+    /**
+     * Draws pixels (rgba8) with a canvas. The canvas can't be detached from
+     * the surface, so the renderer can't use it until it's recreated.
+     */
+    private void drawCanvas(ByteBuffer pixels, int width, int height) {
+        final Canvas canvas = holder.lockHardwareCanvas();
+        if (canvas == null) {
+            return; // the surface is being destroyed
+        }
+        canvasAttached = true;
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        try {
+            bitmap.copyPixelsFromBuffer(pixels.duplicate());
+            canvas.drawBitmap(bitmap, 0, 0, null);
+        } finally {
+            holder.unlockCanvasAndPost(canvas);
+            bitmap.recycle();
+        }
+    }
+
+    /** Sleeps until there's a command or the static-mode frame needs to be updated. */
+    private void awaitChange() {
+        while (running && active && pending.get() == 0 && !stale()) {
+            LockSupport.park(this);
+        }
+    }
+
+    /** Sets the custom theme if it changed, returning whether it did. */
+    private boolean applyCustomTheme(WindyWallpaperNative renderer, int theme, boolean force) {
         if (theme != Themes.CUSTOM) {
-            return;
+            return false;
         }
         final int seq = CustomTheme.currentSeq();
-        if (!fresh && seq == customSeq) {
-            return;
+        if (!force && seq == customSeq) {
+            return false;
         }
         renderer.setCustom(CustomTheme.colors(context), CustomTheme.params(context));
         customSeq = seq;
+        return true;
     }
 
-    private void applyWindField(WindyWallpaperNative renderer) {
-        final WindField.Snapshot snap = WindField.snapshot(context);
-        renderer.setWindField(snap.rgba, snap.width, snap.height);
-        windFieldSeq = snap.seq;
+    /**
+     * Uploads the current wind field. Unless waiting (for a static frame), it
+     * keeps the previous (or neutral) one and returns immediately if it's
+     * still loading, and the renderer is woken to try again when it's ready.
+     */
+    private void applyWindField(WindyWallpaperNative renderer, boolean wait) {
+        final WindField.Snapshot snap = wait ? WindField.snapshot(context) : WindField.snapshotIfReady(context);
+        if (snap == null) {
+            return;
+        }
+        try {
+            renderer.setWindField(snap.rg, snap.width, snap.height, snap.times);
+            windFieldSeq = snap.seq;
+            windFieldUploaded = true;
+            windFieldOutOfBounds = false;
+            WindFieldUpdateService.onWindFieldUploaded(context, snap.seq);
+        } finally {
+            WindField.release(snap); // it's on the gpu now
+        }
     }
 
-    private void applyLocation(WindyWallpaperNative renderer, boolean refresh, boolean fresh) {
+    /** Reads (or refreshes) the user location if it changed, returning whether it did. */
+    private boolean updateLocation(boolean refresh, boolean fresh) {
         if (!refreshLocation()) {
             refresh = false;
         } else if (locationFlowPending && Location.consentDone(context)) {
@@ -306,7 +717,7 @@ public abstract class WindyWallpaperRenderer extends Thread {
             refresh = true;
         }
         if (!refresh && !fresh && Location.currentSeq() == locationSeq) {
-            return;
+            return false;
         }
         final float[] loc;
         if (refresh) {
@@ -319,18 +730,18 @@ public abstract class WindyWallpaperRenderer extends Thread {
         if (loc != null) {
             lastLocation = loc;
         }
-        if (lastLocation != null) {
-            renderer.setUserLocation(lastLocation[0], lastLocation[1]);
-        }
+        return lastLocation != null;
     }
 
-    private synchronized void awaitFrame(long frameStart, int fps) {
-        final long remaining = 1000000000L / fps - (System.nanoTime() - frameStart);
-        if (running && remaining > 0) {
-            try {
-                wait(remaining / 1000000L, (int) (remaining % 1000000L));
-            } catch (InterruptedException ignored) {
-            }
+    /**
+     * Sleeps until the deadline, or until there's a command. While easing,
+     * offsets don't cut it short since the next frame is soon anyways.
+     */
+    private void awaitFrame(long deadline, boolean easing) {
+        final int mask = easing ? ~CMD_OFFSET : ~0;
+        long remaining;
+        while (running && (pending.get() & mask) == 0 && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
         }
     }
 }
@@ -41,6 +41,8 @@ public abstract class WindyWallpaperServiceBase extends WallpaperService {
         return Math.max(FPS_NORMAL, Math.min(FPS_NORMAL_FASTWIND, fps));
     }
 
+    private FpsGovernor governor;
+
     private final AtomicBoolean isPowerSaveMode = new AtomicBoolean();
     private final BroadcastReceiver powerSaveReceiver = new BroadcastReceiver() {
         @Override
@@ -60,12 +62,22 @@ public abstract class WindyWallpaperServiceBase extends WallpaperService {
         WindFieldUpdateService.schedulePeriodic(this);
         LocationUpdateService.schedule(this);
         registerReceiver(powerSaveReceiver, new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED));
+        governor = new FpsGovernor(this);
+        governor.start();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(powerSaveReceiver);
+        governor.stop();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        WindField.trimMemory(); // the renderers already have it on the gpu
+        WindyWallpaperRenderer.releaseDetached();
     }
 
     @Override
@@ -171,12 +183,12 @@ public abstract class WindyWallpaperServiceBase extends WallpaperService {
                 return FPS_POWERSAVE;
             }
             if (easing) {
-                return FPS_HIGH;
+                return governor.apply(FPS_HIGH, FPS_NORMAL, frameStats()); // slower easing too
             }
             if (themeIndex() == Themes.CUSTOM && normalFpsSeq != CustomTheme.currentSeq()) {
                 updateNormalFps();
             }
-            return normalFps;
+            return governor.apply(normalFps, FPS_POWERSAVE, frameStats());
         }
 
         @Override
@@ -3,20 +3,51 @@
 package net.pgaskin.windy;
 
 import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.util.AttributeSet;
+import android.util.TypedValue;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 public class WindyWallpaperView extends SurfaceView implements SurfaceHolder.Callback {
     private static final int FPS = 30;
+    private static final long HUD_INTERVAL = 500; // ms
 
     private WindyWallpaperRenderer renderer;
     private int themeIndex;
     private boolean paused;
 
+    private final Paint hudPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Runnable hudUpdate = this::invalidate;
+
     public WindyWallpaperView(Context context, AttributeSet attrs) {
         super(context, attrs);
         getHolder().addCallback(this);
+        hudPaint.setColor(Color.WHITE);
+        hudPaint.setShadowLayer(2, 0, 0, Color.BLACK);
+        hudPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 11, getResources().getDisplayMetrics()));
+        setWillNotDraw(false); // for the hud
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        removeCallbacks(hudUpdate);
+        if (renderer == null || paused || !Prefs.performanceHud(getContext())) {
+            return;
+        }
+        final FrameStats.Summary summary = renderer.frameStats().summarize();
+        if (summary != null) {
+            final float lineHeight = hudPaint.getFontSpacing();
+            float y = getHeight() / 3f; // below the toolbar
+            for (final String line : renderer.describeFrameStats(summary).split("\n")) {
+                canvas.drawText(line, lineHeight / 2, y, hudPaint);
+                y += lineHeight;
+            }
+        }
+        postDelayed(hudUpdate, HUD_INTERVAL);
     }
 
     public void setThemeIndex(int themeIndex) {
@@ -31,12 +62,14 @@ public class WindyWallpaperView extends SurfaceView implements SurfaceHolder.Cal
         if (renderer != null) {
             renderer.setActive(!paused);
         }
+        invalidate(); // start or stop updating the hud
     }
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
         renderer = new PreviewRenderer(holder);
         renderer.start();
+        invalidate();
     }
 
     @Override
@@ -1,18 +1,21 @@
 #![cfg(target_os = "android")]
 
+use std::hash::{DefaultHasher, Hash, Hasher};
+use std::path::{Path, PathBuf};
 use std::ptr::NonNull;
-use std::time::Instant;
+use std::sync::{Arc, Mutex, Weak};
+use std::time::{Duration, Instant};
 
 use jni::EnvUnowned;
 use jni::errors::LogErrorAndDefault;
-use jni::objects::{JByteArray, JClass, JFloatArray, JIntArray, JObject, JString};
-use jni::sys::{jfloat, jint, jlong, jstring};
+use jni::objects::{JByteBuffer, JClass, JFloatArray, JIntArray, JLongArray, JObject, JString};
+use jni::sys::{jboolean, jfloat, jint, jlong, jstring};
 
 use raw_window_handle::{
     AndroidDisplayHandle, AndroidNdkWindowHandle, RawDisplayHandle, RawWindowHandle,
 };
 use windy_wallpaper_core::{
-    Config, Renderer, Style, Theme, ThemeColors, ThemeParams, ThemeSource, generate,
+    Config, Pipelines, Renderer, Style, Theme, ThemeColors, ThemeParams, ThemeSource, generate,
 };
 
 // must match net.pgaskin.windy.CustomTheme
@@ -28,61 +31,114 @@ const PARAM_ALPHA_DECAY: usize = 2;
 const PARAM_WIND_SPEED: usize = 3;
 const PARAM_COUNT: usize = 4;
 
-struct State {
-    surface: wgpu::Surface<'static>,
-    _window: ndk::native_window::NativeWindow, // MUST be below surface so it outlives it (drop is top-to-bottom)
-    surface_config: wgpu::SurfaceConfiguration,
+/// Where frames are rendered.
+enum Target {
+    Window {
+        surface: wgpu::Surface<'static>,
+        _window: ndk::native_window::NativeWindow, // MUST be below surface so it outlives it (drop is top-to-bottom)
+        config: wgpu::SurfaceConfiguration,
+    },
+    /// A texture which is read back instead of being presented (for static
+    /// frames, which are drawn to the window by the caller).
+    Offscreen { texture: wgpu::Texture },
+    /// Nothing, while keeping the simulation until it's attached to a new
+    /// window.
+    Detached,
+}
+
+const OFFSCREEN_FORMAT: wgpu::TextureFormat = wgpu::TextureFormat::Rgba8Unorm; // matches Bitmap.Config.ARGB_8888
+
+/// The device and compiled pipelines, shared by every renderer in the process
+/// (e.g., the home and lock screen engines, the system preview, and the app)
+/// while any of them are alive, so each one only has its own surface,
+/// buffers, and textures. A window the shared adapter doesn't support gets
+/// its own.
+struct Gpu {
+    adapter: wgpu::Adapter,
     device: wgpu::Device,
     queue: wgpu::Queue,
-    renderer: Renderer,
-    dpi_scale: f32,
     gpu_model: String,
-    last_frame: Instant,
-    _instance: wgpu::Instance, // MUST be last so it outlives everything else
+    pipelines: Mutex<Vec<Pipelines>>, // one for each surface format
+    pipeline_cache: Option<PipelineCache>,
+    instance: wgpu::Instance, // MUST be last so it outlives everything else
 }
 
-impl State {
-    fn new(
-        window: ndk::native_window::NativeWindow,
-        theme_index: usize,
-        dpi_scale: f32,
-    ) -> Result<State, String> {
-        let width = window.width().max(1) as u32;
-        let height = window.height().max(1) as u32;
+/// The driver's compiled pipelines, saved so they don't need to be compiled
+/// again when the process restarts.
+struct PipelineCache {
+    cache: wgpu::PipelineCache,
+    path: PathBuf,
+    loaded: bool, // whether saved data was accepted
+}
+
+static GPU: Mutex<Weak<Gpu>> = Mutex::new(Weak::new());
+static CACHE_DIR: Mutex<Option<PathBuf>> = Mutex::new(None);
+
+/// Keeps the shared context alive after presenting a static frame without a
+/// renderer, so the next one doesn't need to create a device again. Java
+/// releases it after a while.
+static KEPT_GPU: Mutex<Option<Arc<Gpu>>> = Mutex::new(None);
+
+impl Gpu {
+    /// Gets the shared context, creating it if there isn't one.
+    fn shared() -> Result<Arc<Gpu>, String> {
+        let mut shared = GPU.lock().unwrap_or_else(|e| e.into_inner());
+        if let Some(gpu) = shared.upgrade() {
+            return Ok(gpu);
+        }
+        let (gpu, _) = Gpu::new(None)?;
+        let gpu = Arc::new(gpu);
+        *shared = Arc::downgrade(&gpu);
+        Ok(gpu)
+    }
 
+    /// Gets a context with an adapter supporting the window, and a surface for
+    /// it. This is the shared one if it supports the window, otherwise a new
+    /// one (which is only shared if there wasn't one already).
+    fn for_window(
+        window: &ndk::native_window::NativeWindow,
+    ) -> Result<(Arc<Gpu>, wgpu::Surface<'static>), String> {
+        let mut shared = GPU.lock().unwrap_or_else(|e| e.into_inner());
+        let existing = shared.upgrade();
+        if let Some(gpu) = &existing {
+            let surface = create_surface(&gpu.instance, window)?;
+            if gpu.adapter.is_surface_supported(&surface) {
+                return Ok((gpu.clone(), surface));
+            }
+            log::warn!("shared gpu adapter doesn't support the surface, creating a separate device");
+        }
+        let (gpu, surface) = Gpu::new(Some(window))?;
+        let gpu = Arc::new(gpu);
+        if existing.is_none() {
+            *shared = Arc::downgrade(&gpu);
+        }
+        Ok((gpu, surface.expect("surface for window")))
+    }
+
+    /// Creates a context, with an adapter supporting the window (and a
+    /// surface for it) if provided.
+    fn new(
+        window: Option<&ndk::native_window::NativeWindow>,
+    ) -> Result<(Gpu, Option<wgpu::Surface<'static>>), String> {
         let instance = wgpu::Instance::new(wgpu::InstanceDescriptor {
             // vulkan is available on API 24+
             backends: wgpu::Backends::VULKAN,
             ..wgpu::InstanceDescriptor::new_without_display_handle()
         });
-
-        let raw_window_handle = {
-            let ptr = NonNull::new(window.ptr().as_ptr() as *mut _)
-                .ok_or_else(|| "ANativeWindow pointer is null".to_string())?;
-            RawWindowHandle::AndroidNdk(AndroidNdkWindowHandle::new(ptr))
-        };
-        let raw_display_handle = RawDisplayHandle::Android(AndroidDisplayHandle::new());
-        let surface = unsafe {
-            instance
-                .create_surface_unsafe(wgpu::SurfaceTargetUnsafe::RawHandle {
-                    raw_display_handle: Some(raw_display_handle),
-                    raw_window_handle,
-                })
-                .map_err(|e| format!("create surface from ANativeWindow: {}", e))?
-        };
+        let surface = window.map(|w| create_surface(&instance, w)).transpose()?;
 
         // prefer vulkan since wgpu allocates MUCH more memory and is less
         // efficient on gles
         let adapter = pollster::block_on(instance.enumerate_adapters(wgpu::Backends::VULKAN))
             .into_iter()
-            .find(|a| a.is_surface_supported(&surface))
+            .find(|a| surface.as_ref().is_none_or(|s| a.is_surface_supported(s)))
             .ok_or_else(|| "no suitable gpu adapter".to_string())?;
         let adapter_info = adapter.get_info();
         log::info!("using gpu adapter: {:?}", adapter_info);
 
         let (device, queue) = pollster::block_on(adapter.request_device(&wgpu::DeviceDescriptor {
             label: Some("windy.device"),
-            required_features: wgpu::Features::empty(),
+            required_features: adapter.features() & wgpu::Features::PIPELINE_CACHE,
             // keep downlevel_defaults for wider compatibility, but increase the
             // texture limits since max_texture_dimension_2d is too low for most
             // displays
@@ -93,69 +149,298 @@ impl State {
         }))
         .map_err(|e| format!("failed to create device: {}", e))?;
 
-        let caps = surface.get_capabilities(&adapter);
-        // prefer non-srgb to avoid linearizing colors and washing them out
-        let format = caps
-            .formats
-            .iter()
-            .copied()
-            .find(|f| !f.is_srgb())
-            .unwrap_or(caps.formats[0]);
-        let surface_config = wgpu::SurfaceConfiguration {
-            usage: wgpu::TextureUsages::RENDER_ATTACHMENT,
+        let pipeline_cache = open_pipeline_cache(&device, &adapter_info);
+        let gpu = Gpu {
+            adapter,
+            device,
+            queue,
+            gpu_model: adapter_info.name,
+            pipelines: Mutex::new(Vec::new()),
+            pipeline_cache,
+            instance,
+        };
+        Ok((gpu, surface))
+    }
+
+    /// Gets the pipelines for the format, compiling them if needed, and how
+    /// long that took (zero if they were already compiled).
+    fn pipelines(&self, format: wgpu::TextureFormat) -> (Pipelines, Duration) {
+        let mut pipelines = self.pipelines.lock().unwrap_or_else(|e| e.into_inner());
+        if let Some(p) = pipelines.iter().find(|p| p.surface_format() == format) {
+            return (p.clone(), Duration::ZERO);
+        }
+        let start = Instant::now();
+        let p = Pipelines::new(
+            &self.device,
             format,
-            width,
-            height,
-            present_mode: wgpu::PresentMode::AutoVsync,
-            alpha_mode: caps.alpha_modes[0],
-            color_space: wgpu::SurfaceColorSpace::Auto,
-            view_formats: vec![],
-            desired_maximum_frame_latency: 2,
+            self.pipeline_cache.as_ref().map(|c| &c.cache),
+        );
+        let elapsed = start.elapsed();
+        log::info!("compiled pipelines for {format:?} in {elapsed:?}");
+        pipelines.push(p.clone());
+        drop(pipelines);
+        self.save_pipeline_cache();
+        (p, elapsed)
+    }
+
+    fn save_pipeline_cache(&self) {
+        let Some(pc) = &self.pipeline_cache else {
+            return;
+        };
+        let Some(data) = pc.cache.get_data() else {
+            return;
         };
-        surface.configure(&device, &surface_config);
+        let tmp = pc.path.with_extension("tmp");
+        if let Err(e) = std::fs::write(&tmp, &data).and_then(|_| std::fs::rename(&tmp, &pc.path)) {
+            log::warn!("failed to save pipeline cache: {e}");
+            let _ = std::fs::remove_file(&tmp);
+        }
+    }
+}
+
+/// Opens the pipeline cache for the adapter and driver, if it's supported
+/// and the directory was set.
+fn open_pipeline_cache(device: &wgpu::Device, info: &wgpu::AdapterInfo) -> Option<PipelineCache> {
+    if !device.features().contains(wgpu::Features::PIPELINE_CACHE) {
+        return None;
+    }
+    let dir = CACHE_DIR.lock().unwrap_or_else(|e| e.into_inner()).clone()?;
+    let key = wgpu::util::pipeline_cache_key(info)?;
+
+    // the driver rejects data from other versions anyways, but don't keep
+    // loading it or keep old versions around
+    let mut hasher = DefaultHasher::new();
+    info.driver.hash(&mut hasher);
+    info.driver_info.hash(&mut hasher);
+    let name = format!("{key}_{:016x}.bin", hasher.finish());
+    prune_pipeline_caches(&dir, &key, &name);
 
-        let theme = Theme::ALL.get(theme_index).copied().unwrap_or(Theme::BLUE);
-        let mut config = Config::with_theme(&theme);
+    let path = dir.join(name);
+    let data = std::fs::read(&path).ok();
+    // SAFETY: the data is from get_data on the same adapter and driver (or
+    // was written by something else, but wgpu validates the header and falls
+    // back to an empty cache)
+    let cache = unsafe {
+        device.create_pipeline_cache(&wgpu::PipelineCacheDescriptor {
+            label: Some("windy.pipeline_cache"),
+            data: data.as_deref(),
+            fallback: true,
+        })
+    };
+    // With the fallback, rejected data (by wgpu's header validation or the
+    // driver) silently results in an empty cache, which only returns the
+    // headers, so it was only used if everything it had is still there.
+    let loaded = data
+        .as_ref()
+        .is_some_and(|data| cache.get_data().is_some_and(|d| d.len() >= data.len()));
+    if data.is_some() && !loaded {
+        log::warn!("saved pipeline cache was rejected");
+    }
+    Some(PipelineCache {
+        cache,
+        path,
+        loaded,
+    })
+}
 
-        config.line_half_width = scale_line_half_width(config.line_half_width, dpi_scale);
+/// The most pipeline caches to keep, for devices with more than one adapter
+/// (e.g., if the shared one doesn't support a window).
+const MAX_PIPELINE_CACHES: usize = 4;
 
-        let renderer = Renderer::new(&device, &queue, format, config, width, height);
+/// Deletes the pipeline caches for other driver versions of the adapter, and
+/// the least recently written ones for other adapters past the limit. The
+/// caches for other adapters may still be in use by another device in this
+/// process, so they aren't deleted otherwise.
+fn prune_pipeline_caches(dir: &Path, key: &str, name: &str) {
+    let Ok(entries) = std::fs::read_dir(dir) else {
+        return;
+    };
+    let same_adapter = format!("{key}_");
+    let mut others = Vec::new();
+    for entry in entries.flatten() {
+        let file = entry.file_name();
+        let file = file.to_string_lossy();
+        if !file.starts_with("wgpu_pipeline_cache") || file == name {
+            continue;
+        }
+        if file.starts_with(&same_adapter) {
+            let _ = std::fs::remove_file(entry.path());
+        } else {
+            let modified = entry.metadata().and_then(|m| m.modified()).ok();
+            others.push((modified, entry.path()));
+        }
+    }
+    others.sort_unstable_by(|a, b| b.0.cmp(&a.0)); // newest first
+    for (_, path) in others.into_iter().skip(MAX_PIPELINE_CACHES - 1) {
+        let _ = std::fs::remove_file(path);
+    }
+}
+
+struct State {
+    target: Target,
+    width: u32,
+    height: u32,
+    format: wgpu::TextureFormat, // the pipelines are created for it
+    device: wgpu::Device, // same as gpu.device
+    queue: wgpu::Queue, // same as gpu.queue
+    renderer: Renderer,
+    dpi_scale: f32,
+    last_frame: Instant,
+    pipeline_time: Duration, // zero if they were shared
+    gpu: Arc<Gpu>, // MUST be last so it outlives everything else
+}
+
+impl State {
+    fn new(
+        window: ndk::native_window::NativeWindow,
+        theme_index: usize,
+        dpi_scale: f32,
+    ) -> Result<State, String> {
+        let width = window.width().max(1) as u32;
+        let height = window.height().max(1) as u32;
+        Self::create(Some(window), width, height, theme_index, dpi_scale)
+    }
+
+    fn new_offscreen(
+        width: u32,
+        height: u32,
+        theme_index: usize,
+        dpi_scale: f32,
+    ) -> Result<State, String> {
+        Self::create(None, width, height, theme_index, dpi_scale)
+    }
+
+    fn create(
+        window: Option<ndk::native_window::NativeWindow>,
+        width: u32,
+        height: u32,
+        theme_index: usize,
+        dpi_scale: f32,
+    ) -> Result<State, String> {
+        let width = width.max(1);
+        let height = height.max(1);
+
+        let (gpu, surface) = match &window {
+            Some(window) => {
+                let (gpu, surface) = Gpu::for_window(window)?;
+                (gpu, Some(surface))
+            }
+            None => (Gpu::shared()?, None),
+        };
+        let device = gpu.device.clone();
+        let queue = gpu.queue.clone();
+
+        let (target, format) = match (window, surface) {
+            (Some(window), Some(surface)) => {
+                window_target(&gpu.adapter, &device, surface, window, width, height, None)?
+            }
+            _ => {
+                let texture = create_offscreen_texture(&device, width, height);
+                (Target::Offscreen { texture }, OFFSCREEN_FORMAT)
+            }
+        };
+
+        let config = theme_config(theme_index, dpi_scale);
+        let (pipelines, pipeline_time) = gpu.pipelines(format);
+        let renderer = Renderer::with_pipelines(&device, &queue, &pipelines, config, width, height);
         Ok(State {
-            surface,
-            _window: window,
-            surface_config,
+            target,
+            width,
+            height,
+            format,
             device,
             queue,
             renderer,
             dpi_scale,
-            gpu_model: adapter_info.name,
             last_frame: Instant::now(),
-            _instance: instance,
+            pipeline_time,
+            gpu,
         })
     }
 
+    /// Drops the window, keeping the device and the simulation state.
+    fn detach(&mut self) {
+        self.target = Target::Detached;
+    }
+
+    /// Attaches to a new window, resizing to it. The window must support the
+    /// format the pipelines were created for.
+    fn attach(&mut self, window: ndk::native_window::NativeWindow) -> Result<(), String> {
+        self.target = Target::Detached; // drop the old one first
+        let width = window.width().max(1) as u32;
+        let height = window.height().max(1) as u32;
+        let surface = create_surface(&self.gpu.instance, &window)?;
+        if !self.gpu.adapter.is_surface_supported(&surface) {
+            return Err("gpu adapter doesn't support the new surface".to_string());
+        }
+        let (target, _) = window_target(
+            &self.gpu.adapter,
+            &self.device,
+            surface,
+            window,
+            self.width,
+            self.height,
+            Some(self.format),
+        )?;
+        self.target = target;
+        self.resize(width, height);
+        self.last_frame = Instant::now(); // don't count the detached time as frame time
+        Ok(())
+    }
+
     fn resize(&mut self, width: u32, height: u32) {
         let width = width.max(1);
         let height = height.max(1);
-        if width == self.surface_config.width && height == self.surface_config.height {
+        if width == self.width && height == self.height {
             return;
         }
-        self.surface_config.width = width;
-        self.surface_config.height = height;
-        self.surface.configure(&self.device, &self.surface_config);
+        self.width = width;
+        self.height = height;
+        match &mut self.target {
+            Target::Window {
+                surface, config, ..
+            } => {
+                config.width = width;
+                config.height = height;
+                surface.configure(&self.device, config);
+            }
+            Target::Offscreen { texture } => {
+                *texture = create_offscreen_texture(&self.device, width, height);
+            }
+            Target::Detached => {}
+        }
         self.renderer.resize(&self.device, width, height);
     }
 
+    /// Switches to a built-in theme, keeping the device, pipelines, particles,
+    /// and trails.
+    fn set_theme(&mut self, theme_index: usize) {
+        let config = theme_config(theme_index, self.dpi_scale);
+        self.renderer.set_config(&self.device, config);
+    }
+
     fn render(&mut self) {
         let now = Instant::now();
         let dt = (now - self.last_frame).as_secs_f32();
         self.last_frame = now;
 
+        let (surface, config) = match &self.target {
+            Target::Window {
+                surface, config, ..
+            } => (surface, config),
+            Target::Offscreen { texture } => {
+                let view = texture.create_view(&wgpu::TextureViewDescriptor::default());
+                self.renderer.render(&self.device, &self.queue, &view, dt);
+                return;
+            }
+            Target::Detached => return,
+        };
+
         use wgpu::CurrentSurfaceTexture;
-        let frame = match self.surface.get_current_texture() {
+        let frame = match surface.get_current_texture() {
             CurrentSurfaceTexture::Success(f) | CurrentSurfaceTexture::Suboptimal(f) => f,
             CurrentSurfaceTexture::Outdated | CurrentSurfaceTexture::Lost => {
-                self.surface.configure(&self.device, &self.surface_config);
+                surface.configure(&self.device, config);
                 return;
             }
             other => {
@@ -169,6 +454,236 @@ impl State {
         self.renderer.render(&self.device, &self.queue, &view, dt);
         self.queue.present(frame);
     }
+
+    /// Copies the last offscreen frame into `dst` as tightly packed rgba8,
+    /// returning false if it isn't offscreen or `dst` is too small.
+    fn read_pixels(&self, dst: &mut [u8]) -> bool {
+        let Target::Offscreen { texture } = &self.target else {
+            return false;
+        };
+        let (w, h) = (self.width, self.height);
+        let unpadded = w * 4;
+        if dst.len() < (unpadded * h) as usize {
+            return false;
+        }
+        let align = wgpu::COPY_BYTES_PER_ROW_ALIGNMENT;
+        let padded = unpadded.div_ceil(align) * align;
+        let buffer = self.device.create_buffer(&wgpu::BufferDescriptor {
+            label: Some("windy.readback"),
+            size: (padded * h) as u64,
+            usage: wgpu::BufferUsages::COPY_DST | wgpu::BufferUsages::MAP_READ,
+            mapped_at_creation: false,
+        });
+        let mut encoder = self.device.create_command_encoder(&Default::default());
+        encoder.copy_texture_to_buffer(
+            wgpu::TexelCopyTextureInfo {
+                texture,
+                mip_level: 0,
+                origin: wgpu::Origin3d::ZERO,
+                aspect: wgpu::TextureAspect::All,
+            },
+            wgpu::TexelCopyBufferInfo {
+                buffer: &buffer,
+                layout: wgpu::TexelCopyBufferLayout {
+                    offset: 0,
+                    bytes_per_row: Some(padded),
+                    rows_per_image: Some(h),
+                },
+            },
+            wgpu::Extent3d {
+                width: w,
+                height: h,
+                depth_or_array_layers: 1,
+            },
+        );
+        self.queue.submit(Some(encoder.finish()));
+
+        let slice = buffer.slice(..);
+        slice.map_async(wgpu::MapMode::Read, |_| {});
+        if let Err(e) = self.device.poll(wgpu::PollType::wait_indefinitely()) {
+            log::warn!("failed to read back frame: {e}");
+            return false;
+        }
+        let Ok(data) = slice.get_mapped_range() else {
+            return false;
+        };
+        for row in 0..h as usize {
+            let src = &data[row * padded as usize..][..unpadded as usize];
+            dst[row * unpadded as usize..][..unpadded as usize].copy_from_slice(src);
+        }
+        true
+    }
+}
+
+/// Shows tightly packed rgba8 pixels (e.g., from [`State::read_pixels`]) on
+/// the window by copying them into a swapchain image, without creating a
+/// renderer. The surface is dropped afterwards, which disconnects it from the
+/// window (keeping the frame on screen) so a renderer can attach to it later,
+/// unlike a canvas.
+fn present_pixels(
+    window: ndk::native_window::NativeWindow,
+    pixels: &[u8],
+    width: u32,
+    height: u32,
+) -> Result<(), String> {
+    if width == 0 || height == 0 || pixels.len() < (width * height * 4) as usize {
+        return Err("invalid pixel buffer size".to_string());
+    }
+    let (gpu, surface) = Gpu::for_window(&window)?;
+    let caps = surface.get_capabilities(&gpu.adapter);
+    if !caps.usages.contains(wgpu::TextureUsages::COPY_DST) {
+        return Err("surface doesn't support copies".to_string());
+    }
+    // the pixels are already encoded for display, so the srgb formats are
+    // fine too since the bytes are copied as-is
+    let (format, swap) = caps
+        .formats
+        .iter()
+        .find_map(|&f| match f {
+            wgpu::TextureFormat::Rgba8Unorm | wgpu::TextureFormat::Rgba8UnormSrgb => Some((f, false)),
+            wgpu::TextureFormat::Bgra8Unorm | wgpu::TextureFormat::Bgra8UnormSrgb => Some((f, true)),
+            _ => None,
+        })
+        .ok_or_else(|| "surface doesn't support an 8-bit rgba format".to_string())?;
+    surface.configure(
+        &gpu.device,
+        &wgpu::SurfaceConfiguration {
+            usage: wgpu::TextureUsages::COPY_DST,
+            format,
+            width,
+            height,
+            present_mode: wgpu::PresentMode::AutoVsync,
+            alpha_mode: caps.alpha_modes[0],
+            color_space: wgpu::SurfaceColorSpace::Auto,
+            view_formats: vec![],
+            desired_maximum_frame_latency: 1,
+        },
+    );
+
+    use wgpu::CurrentSurfaceTexture;
+    let frame = match surface.get_current_texture() {
+        CurrentSurfaceTexture::Success(f) | CurrentSurfaceTexture::Suboptimal(f) => f,
+        other => return Err(format!("surface unavailable: {other:?}")),
+    };
+    let pixels = &pixels[..(width * height * 4) as usize];
+    let swapped;
+    let data = if swap {
+        swapped = pixels
+            .chunks_exact(4)
+            .flat_map(|px| [px[2], px[1], px[0], px[3]])
+            .collect::<Vec<u8>>();
+        &swapped[..]
+    } else {
+        pixels
+    };
+    gpu.queue.write_texture(
+        wgpu::TexelCopyTextureInfo {
+            texture: &frame.texture,
+            mip_level: 0,
+            origin: wgpu::Origin3d::ZERO,
+            aspect: wgpu::TextureAspect::All,
+        },
+        data,
+        wgpu::TexelCopyBufferLayout {
+            offset: 0,
+            bytes_per_row: Some(width * 4),
+            rows_per_image: Some(height),
+        },
+        wgpu::Extent3d {
+            width,
+            height,
+            depth_or_array_layers: 1,
+        },
+    );
+    gpu.queue.submit(std::iter::empty::<wgpu::CommandBuffer>()); // flush the write
+    gpu.queue.present(frame);
+    drop(surface);
+
+    let shared = GPU.lock().unwrap_or_else(|e| e.into_inner()).upgrade();
+    if shared.is_some_and(|shared| Arc::ptr_eq(&shared, &gpu)) {
+        *KEPT_GPU.lock().unwrap_or_else(|e| e.into_inner()) = Some(gpu);
+    }
+    Ok(())
+}
+
+fn create_surface(
+    instance: &wgpu::Instance,
+    window: &ndk::native_window::NativeWindow,
+) -> Result<wgpu::Surface<'static>, String> {
+    let raw_window_handle = {
+        let ptr = NonNull::new(window.ptr().as_ptr() as *mut _)
+            .ok_or_else(|| "ANativeWindow pointer is null".to_string())?;
+        RawWindowHandle::AndroidNdk(AndroidNdkWindowHandle::new(ptr))
+    };
+    let raw_display_handle = RawDisplayHandle::Android(AndroidDisplayHandle::new());
+    unsafe {
+        instance
+            .create_surface_unsafe(wgpu::SurfaceTargetUnsafe::RawHandle {
+                raw_display_handle: Some(raw_display_handle),
+                raw_window_handle,
+            })
+            .map_err(|e| format!("create surface from ANativeWindow: {}", e))
+    }
+}
+
+/// Configures the surface for the window. If `format` is provided, it must
+/// be supported, otherwise a non-srgb one is preferred.
+fn window_target(
+    adapter: &wgpu::Adapter,
+    device: &wgpu::Device,
+    surface: wgpu::Surface<'static>,
+    window: ndk::native_window::NativeWindow,
+    width: u32,
+    height: u32,
+    format: Option<wgpu::TextureFormat>,
+) -> Result<(Target, wgpu::TextureFormat), String> {
+    let caps = surface.get_capabilities(adapter);
+    let format = match format {
+        Some(format) if caps.formats.contains(&format) => format,
+        Some(format) => return Err(format!("surface doesn't support {format:?}")),
+        // prefer non-srgb to avoid linearizing colors and washing them out
+        None => caps
+            .formats
+            .iter()
+            .copied()
+            .find(|f| !f.is_srgb())
+            .unwrap_or(caps.formats[0]),
+    };
+    let config = wgpu::SurfaceConfiguration {
+        usage: wgpu::TextureUsages::RENDER_ATTACHMENT,
+        format,
+        width,
+        height,
+        present_mode: wgpu::PresentMode::AutoVsync,
+        alpha_mode: caps.alpha_modes[0],
+        color_space: wgpu::SurfaceColorSpace::Auto,
+        view_formats: vec![],
+        desired_maximum_frame_latency: 2,
+    };
+    surface.configure(device, &config);
+    let target = Target::Window {
+        surface,
+        _window: window,
+        config,
+    };
+    Ok((target, format))
+}
+
+fn create_offscreen_texture(device: &wgpu::Device, width: u32, height: u32) -> wgpu::Texture {
+    device.create_texture(&wgpu::TextureDescriptor {
+        label: Some("windy.offscreen"),
+        size: wgpu::Extent3d {
+            width,
+            height,
+            depth_or_array_layers: 1,
+        },
+        mip_level_count: 1,
+        sample_count: 1,
+        dimension: wgpu::TextureDimension::D2,
+        format: OFFSCREEN_FORMAT,
+        usage: wgpu::TextureUsages::RENDER_ATTACHMENT | wgpu::TextureUsages::COPY_SRC,
+        view_formats: &[],
+    })
 }
 
 /// SAFETY: handle must be from `nativeCreate` before `nativeDestroy` on a
@@ -185,12 +700,7 @@ pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeCreate(
     theme_index: jint,
     dpi_scale: jfloat,
 ) -> jlong {
-    // warn to avoid flooding logcat with wgpu-core per-frame logs
-    android_logger::init_once(
-        android_logger::Config::default()
-            .with_max_level(log::LevelFilter::Warn)
-            .with_tag("WindyNative"),
-    );
+    init_logger();
 
     let env_raw = env.as_raw();
     env.with_env(|inner_env| -> Result<jlong, jni::errors::Error> {
@@ -218,6 +728,89 @@ pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeCreate(
     .resolve::<LogErrorAndDefault>()
 }
 
+#[unsafe(no_mangle)]
+pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeCreateOffscreen(
+    mut env: EnvUnowned,
+    _class: JClass,
+    width: jint,
+    height: jint,
+    theme_index: jint,
+    dpi_scale: jfloat,
+) -> jlong {
+    init_logger();
+
+    env.with_env(|inner_env| -> Result<jlong, jni::errors::Error> {
+        match State::new_offscreen(
+            width.max(0) as u32,
+            height.max(0) as u32,
+            theme_index.max(0) as usize,
+            dpi_scale as f32,
+        ) {
+            Ok(state) => Ok(Box::into_raw(Box::new(state)) as jlong),
+            Err(e) => {
+                inner_env.throw_new(
+                    jni::strings::JNIString::from("java/lang/RuntimeException"),
+                    jni::strings::JNIString::from(e),
+                )?;
+                Ok(0)
+            }
+        }
+    })
+    .resolve::<LogErrorAndDefault>()
+}
+
+fn init_logger() {
+    // warn to avoid flooding logcat with wgpu-core per-frame logs
+    android_logger::init_once(
+        android_logger::Config::default()
+            .with_max_level(log::LevelFilter::Warn)
+            .with_tag("WindyNative"),
+    );
+}
+
+#[unsafe(no_mangle)]
+pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeDetach(
+    _env: EnvUnowned,
+    _class: JClass,
+    handle: jlong,
+) {
+    if handle == 0 {
+        return;
+    }
+    unsafe { state(handle) }.detach();
+}
+
+#[unsafe(no_mangle)]
+pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeAttach(
+    mut env: EnvUnowned,
+    _class: JClass,
+    handle: jlong,
+    surface: JObject,
+) -> jboolean {
+    if handle == 0 {
+        return false as jboolean;
+    }
+    let st = unsafe { state(handle) };
+    let env_raw = env.as_raw();
+    env.with_env(|_| -> Result<jboolean, jni::errors::Error> {
+        let window = unsafe {
+            ndk::native_window::NativeWindow::from_surface(env_raw.cast(), surface.as_raw())
+        };
+        let Some(window) = window else {
+            log::warn!("failed to get ANativeWindow from Surface");
+            return Ok(false as jboolean);
+        };
+        match st.attach(window) {
+            Ok(()) => Ok(true as jboolean),
+            Err(e) => {
+                log::warn!("failed to attach to the new surface: {e}");
+                Ok(false as jboolean)
+            }
+        }
+    })
+    .resolve::<LogErrorAndDefault>()
+}
+
 #[unsafe(no_mangle)]
 pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeResize(
     _env: EnvUnowned,
@@ -288,6 +881,19 @@ pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeSetOffs
         .set_offset_x(offset as f32);
 }
 
+#[unsafe(no_mangle)]
+pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeSetTheme(
+    _env: EnvUnowned,
+    _class: JClass,
+    handle: jlong,
+    theme_index: jint,
+) {
+    if handle == 0 {
+        return;
+    }
+    unsafe { state(handle) }.set_theme(theme_index.max(0) as usize);
+}
+
 #[unsafe(no_mangle)]
 pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeSetCustom(
     mut env: EnvUnowned,
@@ -340,13 +946,15 @@ pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeSetUser
 }
 
 #[unsafe(no_mangle)]
-pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeSetWindField(
+pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeSetWindFieldDirect(
     mut env: EnvUnowned,
     _class: JClass,
     handle: jlong,
-    rgba: JByteArray,
+    rg: JByteBuffer,
     width: jint,
     height: jint,
+    layers: jint,
+    times: JLongArray,
 ) {
     if handle == 0 {
         return;
@@ -354,19 +962,104 @@ pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeSetWind
     let st = unsafe { state(handle) };
     env.with_env(|env| {
         // with_env catches panics
-        let bytes = env.convert_byte_array(&rgba)?;
-        st.renderer.set_wind_field(
-            &st.device,
-            &st.queue,
-            width.max(0) as u32,
-            height.max(0) as u32,
-            &bytes,
-        );
+        let width = width.max(0) as u32;
+        let height = height.max(0) as u32;
+        let mut times_buf = vec![0i64; layers.max(1) as usize];
+        times.get_region(env, 0, &mut times_buf)?;
+        let times: Vec<f64> = times_buf.iter().map(|&t| t as f64 / 1000.0).collect();
+        let len = width as usize * height as usize * times.len() * 2;
+        let ptr = env.get_direct_buffer_address(&rg)?;
+        let cap = env.get_direct_buffer_capacity(&rg)?;
+        if ptr.is_null() || cap < len {
+            log::warn!("wind field buffer too small ({cap} < {len}), ignoring");
+            return Ok(());
+        }
+        // read it in place; java keeps the buffer alive and unmodified for
+        // the duration of the call
+        let bytes = unsafe { std::slice::from_raw_parts(ptr as *const u8, len) };
+        st.renderer
+            .set_wind_field(&st.device, &st.queue, width, height, &times, bytes);
         Ok::<(), jni::errors::Error>(()) // leave unchanged on error
     })
     .resolve::<LogErrorAndDefault>();
 }
 
+#[unsafe(no_mangle)]
+pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeReadPixels(
+    mut env: EnvUnowned,
+    _class: JClass,
+    handle: jlong,
+    dst: JByteBuffer,
+) -> jboolean {
+    if handle == 0 {
+        return false as jboolean;
+    }
+    let st = unsafe { state(handle) };
+    env.with_env(|env| -> Result<jboolean, jni::errors::Error> {
+        let ptr = env.get_direct_buffer_address(&dst)?;
+        let cap = env.get_direct_buffer_capacity(&dst)?;
+        if ptr.is_null() {
+            return Ok(false as jboolean);
+        }
+        // java keeps the buffer alive and doesn't touch it for the duration
+        // of the call
+        let bytes = unsafe { std::slice::from_raw_parts_mut(ptr, cap) };
+        Ok(st.read_pixels(bytes) as jboolean)
+    })
+    .resolve::<LogErrorAndDefault>()
+}
+
+#[unsafe(no_mangle)]
+pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativePresentPixels(
+    mut env: EnvUnowned,
+    _class: JClass,
+    surface: JObject,
+    src: JByteBuffer,
+    width: jint,
+    height: jint,
+) -> jboolean {
+    init_logger();
+
+    let env_raw = env.as_raw();
+    env.with_env(|env| -> Result<jboolean, jni::errors::Error> {
+        let window = unsafe {
+            ndk::native_window::NativeWindow::from_surface(env_raw.cast(), surface.as_raw())
+        };
+        let Some(window) = window else {
+            log::warn!("failed to get ANativeWindow from Surface");
+            return Ok(false as jboolean);
+        };
+        let ptr = env.get_direct_buffer_address(&src)?;
+        let cap = env.get_direct_buffer_capacity(&src)?;
+        if ptr.is_null() {
+            return Ok(false as jboolean);
+        }
+        // java keeps the buffer alive and doesn't touch it for the duration
+        // of the call
+        let bytes = unsafe { std::slice::from_raw_parts(ptr, cap) };
+        match present_pixels(window, bytes, width.max(0) as u32, height.max(0) as u32) {
+            Ok(()) => Ok(true as jboolean),
+            Err(e) => {
+                log::warn!("failed to present pixels: {e}");
+                Ok(false as jboolean)
+            }
+        }
+    })
+    .resolve::<LogErrorAndDefault>()
+}
+
+#[unsafe(no_mangle)]
+pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeWindFieldStale(
+    _env: EnvUnowned,
+    _class: JClass,
+    handle: jlong,
+) -> jboolean {
+    if handle == 0 {
+        return false as jboolean;
+    }
+    unsafe { state(handle) }.renderer.wind_field_stale() as jboolean
+}
+
 #[unsafe(no_mangle)]
 pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeGpuModel<'local>(
     mut env: EnvUnowned<'local>,
@@ -378,12 +1071,64 @@ pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeGpuMode
     }
     let st = unsafe { state(handle) };
     env.with_env(|env| -> Result<JString<'local>, jni::errors::Error> {
-        env.new_string(&st.gpu_model) // returns null on error
+        env.new_string(&st.gpu.gpu_model) // returns null on error
     })
     .resolve::<LogErrorAndDefault>()
     .into_raw()
 }
 
+#[unsafe(no_mangle)]
+pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativePipelineNanos(
+    _env: EnvUnowned,
+    _class: JClass,
+    handle: jlong,
+) -> jlong {
+    if handle == 0 {
+        return 0;
+    }
+    unsafe { state(handle) }.pipeline_time.as_nanos() as jlong
+}
+
+#[unsafe(no_mangle)]
+pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativePipelineCacheLoaded(
+    _env: EnvUnowned,
+    _class: JClass,
+    handle: jlong,
+) -> jboolean {
+    if handle == 0 {
+        return false as jboolean;
+    }
+    let st = unsafe { state(handle) };
+    st.gpu.pipeline_cache.as_ref().is_some_and(|c| c.loaded) as jboolean
+}
+
+#[unsafe(no_mangle)]
+pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeSetCacheDir<'local>(
+    mut env: EnvUnowned<'local>,
+    _class: JClass,
+    dir: JString<'local>,
+) {
+    env.with_env(|env| -> Result<(), jni::errors::Error> {
+        let dir = if dir.is_null() {
+            None
+        } else {
+            Some(PathBuf::from(dir.try_to_string(env)?))
+        };
+        *CACHE_DIR.lock().unwrap_or_else(|e| e.into_inner()) = dir;
+        Ok(())
+    })
+    .resolve::<LogErrorAndDefault>()
+}
+
+#[unsafe(no_mangle)]
+pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeReleaseGpu(
+    _env: EnvUnowned,
+    _class: JClass,
+) {
+    let gpu = KEPT_GPU.lock().unwrap_or_else(|e| e.into_inner()).take();
+    drop(gpu); // outside the lock
+}
+
 #[unsafe(no_mangle)]
 pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeDestroy(
     _env: EnvUnowned,
@@ -557,6 +1302,14 @@ pub extern "system" fn Java_net_pgaskin_windy_WindyWallpaperNative_nativeThemeSo
     .into_raw()
 }
 
+/// The [`Config`] for a built-in theme, scaled for the display.
+fn theme_config(theme_index: usize, dpi_scale: f32) -> Config {
+    let theme = Theme::ALL.get(theme_index).copied().unwrap_or(Theme::BLUE);
+    let mut config = Config::with_theme(&theme);
+    config.line_half_width = scale_line_half_width(config.line_half_width, dpi_scale);
+    config
+}
+
 // keep it density-independent for custom themes too
 fn scale_line_half_width(value: f32, dpi_scale: f32) -> f32 {
     (value * dpi_scale).max(1.0)
@@ -0,0 +1,80 @@
+// SPDX-FileCopyrightText: 2026 Patrick Gaskin
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package net.pgaskin.windy.gradle
+
+import org.gradle.api.DefaultTask
+import org.gradle.api.GradleException
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+
+import javax.imageio.ImageIO
+
+// pre-decodes the embedded wind field so the app can map it directly instead
+// of inflating the png on every cold start (must match WindField)
+abstract class GenerateWindCacheTask extends DefaultTask {
+    static final String ASSET = "windy/wind_cache.bin"
+    static final int MAGIC = 0x574E4446 // "WNDF"
+    static final int VERSION = 3
+
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    abstract RegularFileProperty getWindCache()
+
+    @OutputDirectory
+    abstract DirectoryProperty getAssetsOutputDir()
+
+    @TaskAction
+    void generate() {
+        def img = ImageIO.read(windCache.get().asFile)
+        if (img == null) {
+            throw new GradleException("failed to decode ${windCache.get().asFile}")
+        }
+
+        def assetsRoot = assetsOutputDir.get().asFile
+        assetsRoot.deleteDir()
+        def asset = new File(assetsRoot, ASSET)
+        asset.parentFile.mkdirs()
+
+        def width = img.width
+        def height = img.height
+        def argb = img.getRGB(0, 0, width, height, null, 0, width)
+        asset.withDataOutputStream { out ->
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeInt(width)
+            out.writeInt(height)
+            out.writeInt(1) // layers
+            out.writeInt(0) // reserved
+            out.writeLong(0) // static, so the time doesn't matter
+            def row = new byte[width * 2]
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    def px = argb[y * width + x]
+                    packRg(row, x * 2, (px >> 16) & 0xFF, (px >> 8) & 0xFF, px & 0xFF)
+                }
+                out.write(row)
+            }
+        }
+    }
+
+    // direction (r, g) scaled by the square root of the speed (b), as rg88
+    // (must match pack_wind_field in core/src/render.rs)
+    private static void packRg(byte[] dst, int off, int r, int g, int b) {
+        float u = r / 255f * 2 - 1
+        float v = g / 255f * 2 - 1
+        float len = (float) Math.sqrt(u * u + v * v)
+        float scale = len > 0 ? (float) Math.sqrt(b / 255f) / len : 0f
+        dst[off] = packComponent(u * scale)
+        dst[off + 1] = packComponent(v * scale)
+    }
+
+    private static byte packComponent(float c) {
+        return (byte) Math.max(0, Math.min(255, Math.round((c * 0.5f + 0.5f) * 255)))
+    }
+}
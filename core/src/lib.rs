@@ -24,5 +24,5 @@ mod shaders {
 
 pub use color::{Style, StyleColor, generate};
 pub use config::{Config, Theme, ThemeColors, ThemeParams};
-pub use render::Renderer;
+pub use render::{Pipelines, Renderer, pack_wind_field};
 pub use source::ThemeSource;
@@ -1,6 +1,8 @@
 // SPDX-FileCopyrightText: 2026 Patrick Gaskin
 // SPDX-License-Identifier: AGPL-3.0-or-later
 
+use std::time::{SystemTime, UNIX_EPOCH};
+
 use bytemuck::Zeroable;
 use wgpu::util::DeviceExt;
 
@@ -19,6 +21,17 @@ const REDRAW_MAX_BOOST: f32 = 7.0;
 /// update (every ~1/18s), which is ~10 times per second.
 const TRAIL_UPDATE_FPS: f32 = 10.0;
 
+/// Range of particle positions (relative to the bounds) sampled from the wind
+/// field. Particles respawn within it, and only leave it for a short time.
+const WIND_SAMPLE_RANGE: [f32; 2] = [-0.1, 1.1];
+
+/// Extra area (as a fraction of the sampled region size) of the wind field to
+/// upload on each side, so small location changes don't need a new upload.
+const WIND_REGION_MARGIN: f32 = 0.25;
+
+/// Maximum number of warm-up steps recorded into one submission.
+const SKIP_BATCH: u32 = 512;
+
 const TRAIL_FORMAT: wgpu::TextureFormat = wgpu::TextureFormat::Rgba16Float;
 const WORKGROUP: u32 = shaders::simulate::compute::MAIN_WORKGROUP_SIZE[0];
 
@@ -34,15 +47,14 @@ pub struct Renderer {
     trail_view: wgpu::TextureView,
     trail_sampler: wgpu::Sampler,
     trail_cleared: bool,
+    wind_stale: bool,
+    wind_times: Vec<f64>, // unix seconds of each wind field layer
 
     sim_bg: shaders::simulate::bind_groups::BindGroup0,
     trail_bg: shaders::trail::bind_groups::BindGroup0,
     composite_bg: shaders::composite::bind_groups::BindGroup0,
 
-    sim_pipeline: wgpu::ComputePipeline,
-    fade_pipeline: wgpu::RenderPipeline,
-    trail_pipeline: wgpu::RenderPipeline,
-    composite_pipeline: wgpu::RenderPipeline,
+    pipelines: Pipelines,
 
     width: u32,
     height: u32,
@@ -53,56 +65,36 @@ pub struct Renderer {
     redraw_target: u32,
 }
 
-impl Renderer {
+/// The compiled pipelines for a surface format, which can be shared by
+/// renderers on the same device (the handles are reference-counted).
+#[derive(Clone)]
+pub struct Pipelines {
+    surface_format: wgpu::TextureFormat,
+    sim_pipeline: wgpu::ComputePipeline,
+    fade_pipeline: wgpu::RenderPipeline,
+    trail_pipeline: wgpu::RenderPipeline,
+    composite_pipeline: wgpu::RenderPipeline,
+}
+
+impl Pipelines {
+    /// Compiles the pipelines, using the cache if provided (the device must
+    /// have [`wgpu::Features::PIPELINE_CACHE`]).
     pub fn new(
         device: &wgpu::Device,
-        queue: &wgpu::Queue,
         surface_format: wgpu::TextureFormat,
-        config: Config,
-        width: u32,
-        height: u32,
+        cache: Option<&wgpu::PipelineCache>,
     ) -> Self {
-        let width = width.max(1);
-        let height = height.max(1);
-
-        let globals_buf = device.create_buffer(&wgpu::BufferDescriptor {
-            label: Some("windy.globals"),
-            size: std::mem::size_of::<Globals>() as u64,
-            usage: wgpu::BufferUsages::UNIFORM | wgpu::BufferUsages::COPY_DST,
-            mapped_at_creation: false,
+        let sim_module = shaders::simulate::create_shader_module(device);
+        let sim_pl = shaders::simulate::create_pipeline_layout(device);
+        let sim_pipeline = device.create_compute_pipeline(&wgpu::ComputePipelineDescriptor {
+            label: Some("windy.sim_pipeline"),
+            layout: Some(&sim_pl),
+            module: &sim_module,
+            entry_point: Some("main"),
+            compilation_options: Default::default(),
+            cache,
         });
 
-        let particles = init_particles(&config);
-        let particle_buf = device.create_buffer_init(&wgpu::util::BufferInitDescriptor {
-            label: Some("windy.particles"),
-            contents: bytemuck::cast_slice(&particles),
-            usage: wgpu::BufferUsages::STORAGE,
-        });
-
-        let (_, wind_view) = create_wind_texture(device, queue, 1, 1, &[128, 128, 0, 255]); // initial neutral field
-        let wind_sampler = device.create_sampler(&wgpu::SamplerDescriptor {
-            label: Some("windy.wind_sampler"),
-            address_mode_u: wgpu::AddressMode::Repeat, // wrap longitude
-            address_mode_v: wgpu::AddressMode::ClampToEdge,
-            address_mode_w: wgpu::AddressMode::ClampToEdge,
-            mag_filter: wgpu::FilterMode::Linear,
-            min_filter: wgpu::FilterMode::Linear,
-            ..Default::default()
-        });
-
-        let (_, trail_view) = create_trail_texture(device, width, height, &config);
-        let trail_sampler = device.create_sampler(&wgpu::SamplerDescriptor {
-            label: Some("windy.trail_sampler"),
-            address_mode_u: wgpu::AddressMode::ClampToEdge,
-            address_mode_v: wgpu::AddressMode::ClampToEdge,
-            address_mode_w: wgpu::AddressMode::ClampToEdge,
-            mag_filter: wgpu::FilterMode::Linear,
-            min_filter: wgpu::FilterMode::Linear,
-            ..Default::default()
-        });
-
-        let sim_pipeline = shaders::simulate::compute::create_main_pipeline(device);
-
         let trail_module = shaders::trail::create_shader_module(device);
         let trail_pl = shaders::trail::create_pipeline_layout(device);
         let trail_blend = wgpu::BlendState {
@@ -132,7 +124,7 @@ impl Renderer {
             depth_stencil: None,
             multisample: wgpu::MultisampleState::default(),
             multiview_mask: None,
-            cache: None,
+            cache,
         });
 
         let fade_module = shaders::fade::create_shader_module(device);
@@ -160,7 +152,7 @@ impl Renderer {
             depth_stencil: None,
             multisample: wgpu::MultisampleState::default(),
             multiview_mask: None,
-            cache: None,
+            cache,
         });
 
         let composite_module = shaders::composite::create_shader_module(device);
@@ -183,7 +175,84 @@ impl Renderer {
             depth_stencil: None,
             multisample: wgpu::MultisampleState::default(),
             multiview_mask: None,
-            cache: None,
+            cache,
+        });
+
+        Self {
+            surface_format,
+            sim_pipeline,
+            fade_pipeline,
+            trail_pipeline,
+            composite_pipeline,
+        }
+    }
+
+    pub fn surface_format(&self) -> wgpu::TextureFormat {
+        self.surface_format
+    }
+}
+
+impl Renderer {
+    pub fn new(
+        device: &wgpu::Device,
+        queue: &wgpu::Queue,
+        surface_format: wgpu::TextureFormat,
+        config: Config,
+        width: u32,
+        height: u32,
+    ) -> Self {
+        let pipelines = Pipelines::new(device, surface_format, None);
+        Self::with_pipelines(device, queue, &pipelines, config, width, height)
+    }
+
+    /// Like [`Self::new`], but with pipelines which were already compiled
+    /// for the device.
+    pub fn with_pipelines(
+        device: &wgpu::Device,
+        queue: &wgpu::Queue,
+        pipelines: &Pipelines,
+        config: Config,
+        width: u32,
+        height: u32,
+    ) -> Self {
+        let width = width.max(1);
+        let height = height.max(1);
+
+        let globals_buf = device.create_buffer(&wgpu::BufferDescriptor {
+            label: Some("windy.globals"),
+            size: std::mem::size_of::<Globals>() as u64,
+            usage: wgpu::BufferUsages::UNIFORM | wgpu::BufferUsages::COPY_DST,
+            mapped_at_creation: false,
+        });
+
+        let particles = init_particles(&config);
+        let particle_buf = device.create_buffer_init(&wgpu::util::BufferInitDescriptor {
+            label: Some("windy.particles"),
+            contents: bytemuck::cast_slice(&particles),
+            usage: wgpu::BufferUsages::STORAGE,
+        });
+
+        let (_, wind_view) =
+            create_wind_texture(device, queue, 1, 1, 1, [0, 0, 1, 1], &[128, 128]); // initial neutral field
+        let wind_sampler = device.create_sampler(&wgpu::SamplerDescriptor {
+            label: Some("windy.wind_sampler"),
+            address_mode_u: wgpu::AddressMode::Repeat, // wrap longitude
+            address_mode_v: wgpu::AddressMode::ClampToEdge,
+            address_mode_w: wgpu::AddressMode::ClampToEdge,
+            mag_filter: wgpu::FilterMode::Linear,
+            min_filter: wgpu::FilterMode::Linear,
+            ..Default::default()
+        });
+
+        let (_, trail_view) = create_trail_texture(device, width, height, &config);
+        let trail_sampler = device.create_sampler(&wgpu::SamplerDescriptor {
+            label: Some("windy.trail_sampler"),
+            address_mode_u: wgpu::AddressMode::ClampToEdge,
+            address_mode_v: wgpu::AddressMode::ClampToEdge,
+            address_mode_w: wgpu::AddressMode::ClampToEdge,
+            mag_filter: wgpu::FilterMode::Linear,
+            min_filter: wgpu::FilterMode::Linear,
+            ..Default::default()
         });
 
         let config_alpha_decay = config.alpha_decay;
@@ -213,13 +282,12 @@ impl Renderer {
             trail_view,
             trail_sampler,
             trail_cleared: false,
+            wind_stale: false,
+            wind_times: Vec::new(),
             sim_bg,
             trail_bg,
             composite_bg,
-            sim_pipeline,
-            fade_pipeline,
-            trail_pipeline,
-            composite_pipeline,
+            pipelines: pipelines.clone(),
             width,
             height,
             user_location: [-97.0, 38.0],
@@ -228,26 +296,59 @@ impl Renderer {
             redraw_counter: 0,
             redraw_target: REDRAW_FRAMES,
         };
+        renderer.globals.wind_region = [0.0, 0.0, 1.0, 1.0]; // neutral field covers everything
         renderer.update_static_globals();
-        renderer.globals.srgb_output = surface_format.is_srgb() as u32;
+        renderer.globals.srgb_output = pipelines.surface_format.is_srgb() as u32;
         renderer
     }
 
+    /// Uploads the part of the wind field needed for the current bounds (plus
+    /// a margin). If the bounds move outside it, [`Self::wind_field_stale`]
+    /// becomes true, and the field needs to be set again.
+    ///
+    /// The field is row-major rg88 (see [`pack_wind_field`]). If there are
+    /// multiple `layer_times` (ascending unix seconds), `rg` contains that
+    /// many `height`-row layers, one after another, and the simulation
+    /// interpolates between the ones surrounding the current time.
     pub fn set_wind_field(
         &mut self,
         device: &wgpu::Device,
         queue: &wgpu::Queue,
         width: u32,
         height: u32,
-        rgba: &[u8],
+        layer_times: &[f64],
+        rg: &[u8],
     ) {
-        let (_, view) = create_wind_texture(device, queue, width, height, rgba);
+        let layers = layer_times.len().max(1) as u32;
+        let [u0, v0, u1, v1] = self.wind_sample_region(WIND_REGION_MARGIN);
+        // pad by a texel for filtering at the edges
+        let px = |t: f32, size: u32, pad: f32| ((t * size as f32) + pad).clamp(0.0, size as f32) as u32;
+        let x0 = px(u0, width, -1.0).min(width.saturating_sub(1));
+        let y0 = px(v0, height, -1.0).min(height.saturating_sub(1));
+        let x1 = px(u1, width, 2.0).max(x0 + 1);
+        let y1 = px(v1, height, 2.0).max(y0 + 1);
+        let crop = [x0, y0, x1 - x0, y1 - y0];
+
+        let (_, view) = create_wind_texture(device, queue, width, height, layers, crop, rg);
         self.wind_view = view;
+        self.wind_times = layer_times.to_vec();
+        self.globals.wind_region = [
+            x0 as f32 / width as f32,
+            y0 as f32 / height as f32,
+            crop[2] as f32 / width as f32,
+            crop[3] as f32 / height as f32,
+        ];
+        self.wind_stale = false;
         self.rebuild_bind_groups(device);
         self.current_alpha_decay = self.config.alpha_decay_changed;
         self.trigger_redraw();
     }
 
+    /// Whether the bounds moved outside the uploaded part of the wind field.
+    pub fn wind_field_stale(&self) -> bool {
+        self.wind_stale
+    }
+
     pub fn config(&self) -> &Config {
         &self.config
     }
@@ -361,7 +462,7 @@ impl Renderer {
                 occlusion_query_set: None,
                 multiview_mask: None,
             });
-            rpass.set_pipeline(&self.composite_pipeline);
+            rpass.set_pipeline(&self.pipelines.composite_pipeline);
             self.composite_bg.set(&mut rpass);
             rpass.draw(0..3, 0..1);
         }
@@ -371,14 +472,70 @@ impl Renderer {
 
     pub fn skip(&mut self, device: &wgpu::Device, queue: &wgpu::Queue, frames: u32) {
         // instantly run simulation without ease
-        for _ in 0..frames {
-            self.advance(queue, 1.0 / 30.0);
+        if frames == 0 {
+            return;
+        }
+
+        // Each step gets its own slot in a ring of globals, bound at an
+        // offset, so the steps can be recorded together and submitted at
+        // once instead of writing the globals and submitting for every step.
+        let size = std::mem::size_of::<Globals>() as u64;
+        let stride = size.next_multiple_of(device.limits().min_uniform_buffer_offset_alignment as u64);
+        let slots = frames.min(SKIP_BATCH);
+        let ring = device.create_buffer(&wgpu::BufferDescriptor {
+            label: Some("windy.warmup_globals"),
+            size: stride * slots as u64,
+            usage: wgpu::BufferUsages::UNIFORM | wgpu::BufferUsages::COPY_DST,
+            mapped_at_creation: false,
+        });
+        let bgs: Vec<_> = (0..slots as u64)
+            .map(|i| {
+                let g = wgpu::BufferBinding {
+                    buffer: &ring,
+                    offset: i * stride,
+                    size: wgpu::BufferSize::new(size),
+                };
+                let sim_bg = shaders::simulate::bind_groups::BindGroup0::from_bindings(
+                    device,
+                    shaders::simulate::bind_groups::BindGroupLayout0 {
+                        g: g.clone(),
+                        particles: self.particle_buf.as_entire_buffer_binding(),
+                        wind_tex: &self.wind_view,
+                        wind_samp: &self.wind_sampler,
+                    },
+                );
+                let trail_bg = shaders::trail::bind_groups::BindGroup0::from_bindings(
+                    device,
+                    shaders::trail::bind_groups::BindGroupLayout0 {
+                        g,
+                        particles: self.particle_buf.as_entire_buffer_binding(),
+                    },
+                );
+                (sim_bg, trail_bg)
+            })
+            .collect();
+
+        let mut data = vec![0u8; (stride * slots as u64) as usize];
+        let mut remaining = frames;
+        while remaining > 0 {
+            let n = remaining.min(slots);
+            remaining -= n;
+
             let mut encoder = device.create_command_encoder(&wgpu::CommandEncoderDescriptor {
                 label: Some("windy.warmup"),
             });
-            self.encode_simulate_and_trails(&mut encoder);
+            for (i, (sim_bg, trail_bg)) in bgs.iter().take(n as usize).enumerate() {
+                self.step(1.0 / 30.0);
+                let at = i * stride as usize;
+                data[at..at + size as usize].copy_from_slice(bytemuck::bytes_of(&self.globals));
+                let load = self.trail_load();
+                self.encode_step(&mut encoder, sim_bg, trail_bg, load);
+            }
+            // applied before the encoder runs, and after the previous batch
+            queue.write_buffer(&ring, 0, &data[..(stride * n as u64) as usize]);
             queue.submit(Some(encoder.finish()));
         }
+        queue.write_buffer(&self.globals_buf, 0, bytemuck::bytes_of(&self.globals));
     }
 
     fn ramp_boost(&mut self) -> f32 {
@@ -397,6 +554,12 @@ impl Renderer {
     }
 
     fn advance(&mut self, queue: &wgpu::Queue, dt: f32) {
+        self.step(dt);
+        queue.write_buffer(&self.globals_buf, 0, bytemuck::bytes_of(&self.globals));
+    }
+
+    /// Updates the globals for the next simulation step.
+    fn step(&mut self, dt: f32) {
         let dt = dt.clamp(0.0, 1.0 / 18.0); // match the original's max step
         self.time_acc = (self.time_acc + dt) % 64.0;
 
@@ -407,32 +570,55 @@ impl Renderer {
         self.globals.time_delta = dt;
         self.globals.time_acc = self.time_acc;
 
+        let now = SystemTime::now()
+            .duration_since(UNIX_EPOCH)
+            .map_or(0.0, |d| d.as_secs_f64());
+        let (layer0, layer1, mix) = wind_layers(&self.wind_times, now);
+        self.globals.wind_layer0 = layer0;
+        self.globals.wind_layer1 = layer1;
+        self.globals.wind_mix = mix;
+
         // trail length fade (fps-independent)
         self.globals.fade_decay = self
             .current_alpha_decay
             .powf((dt * TRAIL_UPDATE_FPS).max(0.0));
-        queue.write_buffer(&self.globals_buf, 0, bytemuck::bytes_of(&self.globals));
     }
 
     fn encode_simulate_and_trails(&mut self, encoder: &mut wgpu::CommandEncoder) {
+        let load = self.trail_load();
+        self.encode_step(encoder, &self.sim_bg, &self.trail_bg, load);
+    }
+
+    /// The trail load op for the next step.
+    fn trail_load(&mut self) -> wgpu::LoadOp<wgpu::Color> {
+        let load = if self.trail_cleared {
+            wgpu::LoadOp::Load
+        } else {
+            wgpu::LoadOp::Clear(wgpu::Color::TRANSPARENT)
+        };
+        self.trail_cleared = true;
+        load
+    }
+
+    /// Encodes a simulation step using the globals from the bind groups.
+    fn encode_step(
+        &self,
+        encoder: &mut wgpu::CommandEncoder,
+        sim_bg: &shaders::simulate::bind_groups::BindGroup0,
+        trail_bg: &shaders::trail::bind_groups::BindGroup0,
+        load: wgpu::LoadOp<wgpu::Color>,
+    ) {
         {
             let mut cpass = encoder.begin_compute_pass(&wgpu::ComputePassDescriptor {
                 label: Some("windy.simulate"),
                 timestamp_writes: None,
             });
-            cpass.set_pipeline(&self.sim_pipeline);
-            self.sim_bg.set(&mut cpass);
+            cpass.set_pipeline(&self.pipelines.sim_pipeline);
+            sim_bg.set(&mut cpass);
             let groups = self.config.particle_count.div_ceil(WORKGROUP);
             cpass.dispatch_workgroups(groups, 1, 1);
         }
 
-        let load = if self.trail_cleared {
-            wgpu::LoadOp::Load
-        } else {
-            wgpu::LoadOp::Clear(wgpu::Color::TRANSPARENT)
-        };
-        self.trail_cleared = true;
-
         let mut rpass = encoder.begin_render_pass(&wgpu::RenderPassDescriptor {
             label: Some("windy.trails"),
             color_attachments: &[Some(wgpu::RenderPassColorAttachment {
@@ -457,11 +643,11 @@ impl Renderer {
             b: d,
             a: d,
         });
-        rpass.set_pipeline(&self.fade_pipeline);
+        rpass.set_pipeline(&self.pipelines.fade_pipeline);
         rpass.draw(0..3, 0..1);
 
-        rpass.set_pipeline(&self.trail_pipeline);
-        self.trail_bg.set(&mut rpass);
+        rpass.set_pipeline(&self.pipelines.trail_pipeline);
+        trail_bg.set(&mut rpass);
         rpass.draw(0..6, 0..self.config.particle_count);
     }
 
@@ -504,6 +690,37 @@ impl Renderer {
         self.globals.particle_opacity = c.particle_opacity;
         self.globals.line_half_width = c.line_half_width;
         self.globals.particle_count = c.particle_count;
+
+        let [x, y, w, h] = self.globals.wind_region;
+        let [u0, v0, u1, v1] = self.wind_sample_region(0.0);
+        if u0 < x || v0 < y || u1 > x + w || v1 > y + h {
+            self.wind_stale = true;
+        }
+    }
+
+    /// The `(u0, v0, u1, v1)` region of the (mercator) wind field sampled for
+    /// the current bounds, expanded on each side by `margin` times its size.
+    fn wind_sample_region(&self, margin: f32) -> [f32; 4] {
+        let [u, v, du, dv] = self.compute_bounds();
+        let [lo, hi] = WIND_SAMPLE_RANGE;
+        let [sx, sy] = self.config.scale;
+        let (mut u0, mut u1) = (u + lo * du * sx, u + hi * du * sx);
+        let (mut v0, mut v1) = (v + lo * dv * sy, v + hi * dv * sy);
+        let (mu, mv) = ((u1 - u0) * margin, (v1 - v0) * margin);
+        u0 -= mu;
+        u1 += mu;
+        v0 -= mv;
+        v1 += mv;
+        if u0 < 0.0 || u1 > 1.0 {
+            // it wraps around the antimeridian
+            (u0, u1) = (0.0, 1.0);
+        }
+        [
+            u0,
+            equirect_to_mercator(v0.clamp(0.0, 1.0)),
+            u1,
+            equirect_to_mercator(v1.clamp(0.0, 1.0)),
+        ]
     }
 
     fn compute_bounds(&self) -> [f32; 4] {
@@ -526,6 +743,13 @@ fn lat_to_ratio(lat: f32) -> f32 {
     1.0 - ((90.0 + lat) / 180.0)
 }
 
+/// Like `equirect_to_mercator` in common.wgsl.
+fn equirect_to_mercator(v: f32) -> f32 {
+    let half_pi = std::f32::consts::FRAC_PI_2;
+    let latitude = (v * 2.0 - 1.0) * half_pi;
+    (latitude.sinh().atan() / half_pi) * 0.5 + 0.5
+}
+
 fn init_particles(config: &Config) -> Vec<Particle> {
     let count = config.particle_count as usize;
     let dim = (count as f32).sqrt().ceil() as u32;
@@ -546,17 +770,56 @@ fn init_particles(config: &Config) -> Vec<Particle> {
         .collect()
 }
 
+/// Packs a row-major rgba8888 wind field as served by the api (unit direction
+/// in R/G, normalized speed in B) into the rg88 format used by the renderer:
+/// the direction scaled by the square root of the speed, so slow winds keep
+/// some directional precision (must match `decode_wind` in common.wgsl, and
+/// WindField and GenerateWindCacheTask in the app).
+pub fn pack_wind_field(rgba: &[u8]) -> Vec<u8> {
+    rgba.chunks_exact(4)
+        .flat_map(|px| {
+            let u = px[0] as f32 / 255.0 * 2.0 - 1.0;
+            let v = px[1] as f32 / 255.0 * 2.0 - 1.0;
+            let len = (u * u + v * v).sqrt();
+            let scale = if len > 0.0 { (px[2] as f32 / 255.0).sqrt() / len } else { 0.0 };
+            let pack = |c: f32| ((c * scale * 0.5 + 0.5) * 255.0).round().clamp(0.0, 255.0) as u8;
+            [pack(u), pack(v)]
+        })
+        .collect()
+}
+
+/// Picks the pair of wind field layers valid at `now` (unix seconds) and the
+/// interpolation factor between them, holding the first or last one outside
+/// the range.
+fn wind_layers(times: &[f64], now: f64) -> (u32, u32, f32) {
+    let Some(next) = times.iter().position(|&t| t > now) else {
+        let last = times.len().saturating_sub(1) as u32;
+        return (last, last, 0.0);
+    };
+    if next == 0 {
+        return (0, 0, 0.0);
+    }
+    let (t0, t1) = (times[next - 1], times[next]);
+    let mix = ((now - t0) / (t1 - t0)).clamp(0.0, 1.0) as f32;
+    (next as u32 - 1, next as u32, mix)
+}
+
+/// Creates a layered texture from the `(x, y, width, height)` crop of each
+/// layer of a row-major rg88 field, reading it in place from the full rows.
 fn create_wind_texture(
     device: &wgpu::Device,
     queue: &wgpu::Queue,
     width: u32,
     height: u32,
-    rgba: &[u8],
+    layers: u32,
+    crop: [u32; 4],
+    rg: &[u8],
 ) -> (wgpu::Texture, wgpu::TextureView) {
+    let [x, y, crop_width, crop_height] = crop;
     let size = wgpu::Extent3d {
-        width,
-        height,
-        depth_or_array_layers: 1,
+        width: crop_width,
+        height: crop_height,
+        depth_or_array_layers: layers,
     };
     let texture = device.create_texture(&wgpu::TextureDescriptor {
         label: Some("windy.wind"),
@@ -564,7 +827,7 @@ fn create_wind_texture(
         mip_level_count: 1,
         sample_count: 1,
         dimension: wgpu::TextureDimension::D2,
-        format: wgpu::TextureFormat::Rgba8Unorm, // data, not color: linear
+        format: wgpu::TextureFormat::Rg8Unorm, // data, not color: linear
         usage: wgpu::TextureUsages::TEXTURE_BINDING | wgpu::TextureUsages::COPY_DST,
         view_formats: &[],
     });
@@ -575,15 +838,18 @@ fn create_wind_texture(
             origin: wgpu::Origin3d::ZERO,
             aspect: wgpu::TextureAspect::All,
         },
-        rgba,
+        rg,
         wgpu::TexelCopyBufferLayout {
-            offset: 0,
-            bytes_per_row: Some(4 * width),
-            rows_per_image: Some(height),
+            offset: (y as u64 * width as u64 + x as u64) * 2,
+            bytes_per_row: Some(2 * width),
+            rows_per_image: Some(height), // skip the rest of each layer
         },
         size,
     );
-    let view = texture.create_view(&wgpu::TextureViewDescriptor::default());
+    let view = texture.create_view(&wgpu::TextureViewDescriptor {
+        dimension: Some(wgpu::TextureViewDimension::D2Array), // even with one layer
+        ..Default::default()
+    });
     (texture, view)
 }
 
@@ -681,3 +947,78 @@ impl Rng {
         (self.next_u32() >> 8) as f32 / (1u32 << 24) as f32
     }
 }
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    /// `decode_wind` in common.wgsl, for a texel.
+    fn decode_wind(rg: [u8; 2]) -> [f32; 3] {
+        let x = rg[0] as f32 / 255.0 * 2.0 - 1.0;
+        let y = rg[1] as f32 / 255.0 * 2.0 - 1.0;
+        let len = (x * x + y * y).sqrt();
+        if len < 1.5 / 255.0 {
+            return [0.0, 0.0, 0.0];
+        }
+        [x / len, y / len, (len * len).min(1.0)]
+    }
+
+    #[test]
+    fn pack_wind_field_vectors() {
+        // the reference for WindField.packRg and GenerateWindCacheTask.packRg
+        for (rgba, rg) in [
+            ([128, 128, 0, 255], [128, 128]), // calm
+            ([255, 128, 255, 255], [255, 128]),
+            ([0, 128, 255, 255], [0, 128]),
+            ([128, 255, 64, 255], [128, 191]),
+            ([128, 128, 255, 255], [218, 218]), // the tiny direction is normalized too
+            ([218, 38, 128, 255], [192, 64]),
+            ([0, 0, 255, 255], [37, 37]),
+            ([37, 201, 17, 255], [102, 148]),
+        ] {
+            assert_eq!(pack_wind_field(&rgba), rg, "{rgba:?}");
+        }
+        assert_eq!(
+            pack_wind_field(&[128, 128, 0, 255, 0, 128, 255, 0]),
+            [128, 128, 0, 128],
+            "multiple pixels (the alpha is ignored)",
+        );
+    }
+
+    #[test]
+    fn decode_wind_round_trip() {
+        for r in (0..=255u8).step_by(5) {
+            for g in (0..=255u8).step_by(5) {
+                let u = r as f32 / 255.0 * 2.0 - 1.0;
+                let v = g as f32 / 255.0 * 2.0 - 1.0;
+                let len = (u * u + v * v).sqrt();
+                if len < 0.5 {
+                    continue; // not a unit direction, so it isn't from the api
+                }
+                for b in (16..=255u8).step_by(7) {
+                    let rg = pack_wind_field(&[r, g, b, 255]);
+                    let [x, y, speed] = decode_wind([rg[0], rg[1]]);
+                    let what = format!("{:?} -> {rg:?} -> {:?}", [r, g, b], [x, y, speed]);
+                    assert!((x - u / len).abs() < 0.02, "direction x: {what}");
+                    assert!((y - v / len).abs() < 0.02, "direction y: {what}");
+                    assert!((speed - b as f32 / 255.0).abs() < 0.015, "speed: {what}");
+                }
+            }
+        }
+    }
+
+    #[test]
+    fn decode_wind_calm() {
+        // the neutral field, and what the packers write for a zero speed
+        let calm = pack_wind_field(&[200, 30, 0, 255]);
+        assert_eq!(calm, [128, 128]);
+        for rg in [[128, 128], [127, 127], [127, 128], [128, 127]] {
+            assert_eq!(decode_wind(rg), [0.0, 0.0, 0.0], "{rg:?}");
+        }
+        // the smallest non-calm texels still have a direction
+        for rg in [[129, 128], [128, 126], [130, 130]] {
+            let [x, y, _] = decode_wind(rg);
+            assert!((x * x + y * y - 1.0).abs() < 1e-4, "{rg:?}");
+        }
+    }
+}
@@ -5,6 +5,7 @@ const PI: f32 = 3.1415926535897932;
 
 struct Globals {
     vector_field_bounds: vec4<f32>, // region of wind texture (u, v_top, du, dv)
+    wind_region: vec4<f32>,         // uploaded crop of the (mercator) wind field (u, v, du, dv)
     bg_color1: vec4<f32>,
     bg_color2: vec4<f32>,
     color_slow: vec4<f32>,
@@ -23,8 +24,12 @@ struct Globals {
     fade_decay: f32,        // per-frame trail fade multiplier
     particle_count: u32,
     srgb_output: u32,
+    wind_layer0: u32,       // wind texture layers to interpolate between
+    wind_layer1: u32,
+    wind_mix: f32,          // interpolation factor from wind_layer0 to wind_layer1
     _pad0: u32,
     _pad1: u32,
+    _pad2: u32,
 };
 
 struct Particle {
@@ -49,3 +54,32 @@ fn equirect_to_mercator(uv: vec2<f32>) -> vec2<f32> {
     y = y * 0.5 + 0.5;
     return vec2<f32>(uv.x, y);
 }
+
+// equirectangular field position to wind texture uv (the texture only contains
+// the uploaded region)
+fn wind_tex_uv(uv: vec2<f32>, region: vec4<f32>) -> vec2<f32> {
+    return (equirect_to_mercator(uv) - region.xy) / region.zw;
+}
+
+// unpacks a wind texture sample (the direction scaled by the square root of
+// the speed) into the unit direction and normalized speed
+fn decode_wind(rg: vec2<f32>) -> vec3<f32> {
+    let v = rg * 2.0 - 1.0;
+    let len = length(v);
+    // rg88 can't store zero, so calm texels (128, 128) are half a step off
+    // in both components, which would otherwise normalize to a diagonal
+    if len < 1.5 / 255.0 {
+        return vec3<f32>(0.0, 0.0, 0.0);
+    }
+    return vec3<f32>(v / len, min(len * len, 1.0));
+}
+
+// samples the wind texture, interpolating between forecast layers, returning
+// the unit direction and normalized speed
+fn sample_wind(tex: texture_2d_array<f32>, samp: sampler, uv: vec2<f32>, layer0: u32, layer1: u32, mix_factor: f32) -> vec3<f32> {
+    var rg = textureSampleLevel(tex, samp, uv, layer0, 0.0).rg;
+    if layer0 != layer1 {
+        rg = mix(rg, textureSampleLevel(tex, samp, uv, layer1, 0.0).rg, mix_factor);
+    }
+    return decode_wind(rg);
+}
@@ -4,7 +4,7 @@
 @group(0) @binding(0) var<uniform> g: Globals;
 @group(0) @binding(1) var trail_tex: texture_2d<f32>;
 @group(0) @binding(2) var trail_samp: sampler;
-@group(0) @binding(3) var wind_tex: texture_2d<f32>;
+@group(0) @binding(3) var wind_tex: texture_2d_array<f32>;
 @group(0) @binding(4) var wind_samp: sampler;
 
 struct VsOut {
@@ -27,10 +27,10 @@ fn fs_main(in: VsOut) -> @location(0) vec4<f32> {
     let parallax = vec2<f32>(g.offset_x * (g.size.x - 1.0) * 0.5, 0.0);
     let t = (in.uv - 0.5) / g.size + 0.5 + parallax;
 
-    // background tint from wind speed (field blue channel).
+    // background tint from wind speed.
     var buv = g.vector_field_bounds.xy + t * g.vector_field_bounds.zw * g.size;
-    buv = equirect_to_mercator(buv);
-    let speed = textureSample(wind_tex, wind_samp, buv).b;
+    buv = wind_tex_uv(buv, g.wind_region);
+    let speed = sample_wind(wind_tex, wind_samp, buv, g.wind_layer0, g.wind_layer1, g.wind_mix).z;
     let bg = mix(g.bg_color1, g.bg_color2, speed);
 
     // streamlines
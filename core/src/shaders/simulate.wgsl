@@ -3,7 +3,7 @@
 
 @group(0) @binding(0) var<uniform> g: Globals;
 @group(0) @binding(1) var<storage, read_write> particles: array<Particle>;
-@group(0) @binding(2) var wind_tex: texture_2d<f32>;
+@group(0) @binding(2) var wind_tex: texture_2d_array<f32>;
 @group(0) @binding(3) var wind_samp: sampler;
 
 @compute @workgroup_size(64)
@@ -41,7 +41,7 @@ fn main(@builtin(global_invocation_id) gid: vec3<u32>) {
 
 fn wind_at(pos: vec2<f32>) -> vec2<f32> {
     var uv = g.vector_field_bounds.xy + pos * g.vector_field_bounds.zw * g.size;
-    uv = equirect_to_mercator(uv);
-    let wind = textureSampleLevel(wind_tex, wind_samp, uv, 0.0);
-    return (wind.xy - 0.5) * vec2<f32>(1.0, -1.0) * g.resolution;
+    uv = wind_tex_uv(uv, g.wind_region);
+    let wind = sample_wind(wind_tex, wind_samp, uv, g.wind_layer0, g.wind_layer1, g.wind_mix);
+    return wind.xy * 0.5 * vec2<f32>(1.0, -1.0) * g.resolution;
 }
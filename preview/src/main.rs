@@ -16,7 +16,7 @@ use winit::keyboard::{KeyCode, PhysicalKey};
 use winit::window::{Window, WindowId};
 
 use theme_editor::ThemeEditor;
-use windy_wallpaper_core::{Config, Renderer, Theme};
+use windy_wallpaper_core::{Config, Renderer, Theme, pack_wind_field};
 
 pub(crate) const WIND_PNG: &[u8] = include_bytes!("wind_cache.png");
 
@@ -169,10 +169,30 @@ fn save_jpeg(path: &std::path::Path, pixels: &[u8], width: u32, height: u32, qua
     println!("{}", path.display());
 }
 
+/// The embedded wind field, packed for the renderer.
+struct Wind {
+    width: u32,
+    height: u32,
+    rg: Vec<u8>,
+}
+
+impl Wind {
+    fn load() -> Self {
+        let img = image::load_from_memory(WIND_PNG)
+            .expect("decode wind field")
+            .to_rgba8();
+        Self {
+            width: img.width(),
+            height: img.height(),
+            rg: pack_wind_field(&img),
+        }
+    }
+}
+
 struct Offscreen {
     device: wgpu::Device,
     queue: wgpu::Queue,
-    wind: image::RgbaImage,
+    wind: Wind,
 }
 
 impl Offscreen {
@@ -190,7 +210,7 @@ impl Offscreen {
         }))
         .unwrap();
 
-        let wind = image::load_from_memory(WIND_PNG).unwrap().to_rgba8();
+        let wind = Wind::load();
 
         Self {
             device,
@@ -207,8 +227,8 @@ impl Offscreen {
         let format = wgpu::TextureFormat::Rgba8Unorm;
         let mut renderer = Renderer::new(device, queue, format, config, w, h);
         let wind = &self.wind;
-        renderer.set_wind_field(device, queue, wind.width(), wind.height(), wind);
-        renderer.set_user_location(lng, lat);
+        renderer.set_user_location(lng, lat); // first, since only the visible part is uploaded
+        renderer.set_wind_field(device, queue, wind.width, wind.height, &[], &wind.rg);
 
         // render
         let target = device.create_texture(&wgpu::TextureDescriptor {
@@ -323,6 +343,7 @@ struct State {
     surface: wgpu::Surface<'static>,
     surface_config: wgpu::SurfaceConfiguration,
     renderer: Renderer,
+    wind: Wind,
     last_frame: Instant,
 
     egui_ctx: egui::Context,
@@ -430,11 +451,9 @@ impl State {
         let mut renderer =
             Renderer::new(&device, &queue, format, editor.to_config(), width, height);
 
-        let img = image::load_from_memory(WIND_PNG)
-            .expect("decode wind field")
-            .to_rgba8();
-        renderer.set_wind_field(&device, &queue, img.width(), img.height(), &img);
-        renderer.set_user_location(-97.0, 38.0);
+        let wind = Wind::load();
+        renderer.set_user_location(-97.0, 38.0); // first, since only the visible part is uploaded
+        renderer.set_wind_field(&device, &queue, wind.width, wind.height, &[], &wind.rg);
 
         let egui_ctx = egui::Context::default();
         let egui_state = egui_winit::State::new(
@@ -467,6 +486,7 @@ impl State {
             surface,
             surface_config,
             renderer,
+            wind,
             last_frame: Instant::now(),
             egui_ctx,
             egui_state,
@@ -483,6 +503,11 @@ impl State {
         self.surface_config.height = height;
         self.surface.configure(&self.device, &self.surface_config);
         self.renderer.resize(&self.device, width, height);
+        if self.renderer.wind_field_stale() {
+            let wind = &self.wind;
+            self.renderer
+                .set_wind_field(&self.device, &self.queue, wind.width, wind.height, &[], &wind.rg);
+        }
     }
 
     fn render(&mut self) {